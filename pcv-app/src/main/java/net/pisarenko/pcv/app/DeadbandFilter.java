@@ -0,0 +1,76 @@
+package net.pisarenko.pcv.app;
+
+import net.pisarenko.pcv.values.ChannelDecoder;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides per channel whether a decoded value should be published, according to the channel's {@link FilterRule}.
+ * Channels without a rule are always published.
+ *
+ * Called from a single thread; the emitted and suppressed counters may be read from anywhere.
+ */
+public class DeadbandFilter {
+    private final FilterRule[] rules;
+    private final double[] lastValues;
+    private final long[] lastEmitMillis;
+    private final boolean[] seen;
+
+    private final AtomicLongArray emitted;
+    private final AtomicLongArray suppressed;
+
+    public DeadbandFilter(final ChannelDecoder decoder, final Map<String, FilterRule> rulesByChannel) {
+        final int count = decoder.getChannelCount();
+        this.rules = new FilterRule[count];
+        for (int i = 0; i < count; i++) {
+            rules[i] = rulesByChannel.get(decoder.getChannel(i).getName());
+        }
+        this.lastValues = new double[count];
+        this.lastEmitMillis = new long[count];
+        this.seen = new boolean[count];
+        this.emitted = new AtomicLongArray(count);
+        this.suppressed = new AtomicLongArray(count);
+    }
+
+    /**
+     * Returns true if the value of the channel with the given index should be published, and if so remembers it as
+     * the last published value.
+     */
+    public boolean accept(final int channel, final double value, final long timestampMillis) {
+        final FilterRule rule = rules[channel];
+        if (rule == null || !seen[channel] || isDue(rule, channel, value, timestampMillis)) {
+            seen[channel] = true;
+            lastValues[channel] = value;
+            lastEmitMillis[channel] = timestampMillis;
+            emitted.incrementAndGet(channel);
+            return true;
+        }
+        suppressed.incrementAndGet(channel);
+        return false;
+    }
+
+    public long getEmittedCount(final int channel) {
+        return emitted.get(channel);
+    }
+
+    public long getSuppressedCount(final int channel) {
+        return suppressed.get(channel);
+    }
+
+    private boolean isDue(final FilterRule rule, final int channel, final double value, final long timestampMillis) {
+        final long elapsed = timestampMillis - lastEmitMillis[channel];
+        if (elapsed < 0) {
+            // the clock was stepped back; start over from this value rather than wait for the old timestamp
+            return true;
+        }
+        if (elapsed < rule.getMinIntervalMillis()) {
+            return false;
+        }
+        if (elapsed >= rule.getMaxIntervalMillis()) {
+            return true;
+        }
+        final double change = Math.abs(value - lastValues[channel]);
+        return change > 0 && change >= rule.threshold(lastValues[channel]);
+    }
+}
@@ -0,0 +1,47 @@
+package net.pisarenko.pcv.app;
+
+/**
+ * When a channel value is worth publishing: once it moved at least the deadband away from the value published last,
+ * but not more often than every {@code minIntervalMillis}, and at least every {@code maxIntervalMillis} (heartbeat)
+ * even if it did not move.
+ */
+public class FilterRule {
+    private final double deadband;
+    /** Whether {@link #deadband} is a percentage of the value published last rather than an absolute amount. */
+    private final boolean percent;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+
+    private FilterRule(final double deadband, final boolean percent, final long minIntervalMillis,
+                       final long maxIntervalMillis) {
+        this.deadband = deadband;
+        this.percent = percent;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+    }
+
+    public static FilterRule absolute(final double deadband, final long minIntervalMillis,
+                                      final long maxIntervalMillis) {
+        return new FilterRule(deadband, false, minIntervalMillis, maxIntervalMillis);
+    }
+
+    public static FilterRule percent(final double deadband, final long minIntervalMillis,
+                                     final long maxIntervalMillis) {
+        return new FilterRule(deadband, true, minIntervalMillis, maxIntervalMillis);
+    }
+
+    /**
+     * Returns the smallest change from the last published value that counts as a transition.
+     */
+    double threshold(final double lastValue) {
+        return percent ? Math.abs(lastValue) * deadband / 100 : deadband;
+    }
+
+    long getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    long getMaxIntervalMillis() {
+        return maxIntervalMillis;
+    }
+}
@@ -0,0 +1,155 @@
+package net.pisarenko.pcv.app;
+
+import net.pisarenko.pcv.common.NanoClock;
+import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketView;
+import net.pisarenko.pcv.common.metrics.LatencyHistogram;
+import net.pisarenko.pcv.common.metrics.MetricsRegistry;
+import net.pisarenko.pcv.streamer.StreamerMessage;
+import net.pisarenko.pcv.values.ChannelDecoder;
+import net.pisarenko.pcv.values.ChannelSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decodes packets from the PCV into one message per channel, leaving out values that the filter considers not worth
+ * publishing. Optionally also publishes windowed aggregates, or only those.
+ */
+@SuppressWarnings("squid:S2189")
+class PacketToAmazonMessage implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PacketToAmazonMessage.class);
+
+    /** Log the filter counters every this many packets. */
+    private static final int STATS_INTERVAL_PACKETS = 3000;
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private Queue<StreamerMessage> amazonQueue;
+    private BlockingQueue<Packet> packetQueue;
+    private ChannelDecoder decoder;
+    private DeadbandFilter filter;
+    /** Null when no aggregates are published. */
+    private WindowAggregator aggregator;
+    private boolean publishRawValues = true;
+    private String topicPrefix = "";
+    /** Null when there is no live feed. */
+    private Queue<StreamerMessage> liveQueue;
+    private String liveTopicPrefix = "";
+    private LatencyHistogram decodeTime = new LatencyHistogram();
+    private LatencyHistogram receivedToDecoded = new LatencyHistogram();
+    private LatencyHistogram decodedToEnqueued = new LatencyHistogram();
+
+    PacketToAmazonMessage(Queue<StreamerMessage> amazonQueue, BlockingQueue<Packet> packetQueue,
+                          ChannelDecoder decoder, DeadbandFilter filter) {
+        this.amazonQueue = amazonQueue;
+        this.packetQueue = packetQueue;
+        this.decoder = decoder;
+        this.filter = filter;
+    }
+
+    /**
+     * Publishes windowed aggregates as well. Without raw values only the aggregates leave the bike.
+     */
+    void setAggregator(final WindowAggregator aggregator, final boolean publishRawValues) {
+        this.aggregator = aggregator;
+        this.publishRawValues = publishRawValues;
+    }
+
+    /**
+     * Puts a prefix in front of the channel names in topics, e.g. to tell devices apart. Must be called before the
+     * converter is started.
+     */
+    void setTopicPrefix(final String topicPrefix) {
+        this.topicPrefix = topicPrefix;
+    }
+
+    /**
+     * Also offers every decoded value, unfiltered, to a second queue, e.g. a {@link
+     * net.pisarenko.pcv.common.queue.ConflatingQueue} feeding a live dashboard. Topics get the prefix in front of the
+     * one set with {@link #setTopicPrefix}.
+     */
+    void setLiveQueue(final Queue<StreamerMessage> liveQueue, final String topicPrefix) {
+        this.liveQueue = liveQueue;
+        this.liveTopicPrefix = topicPrefix;
+    }
+
+    void setMetrics(final MetricsRegistry metrics) {
+        decodeTime = metrics.histogram("pcv_decode_seconds",
+                "Time to decode a packet, filter and aggregate its values and queue the messages");
+        receivedToDecoded = metrics.histogram("pcv_latency_received_to_decoded_seconds",
+                "Time from receiving a sample from the PCV until it is decoded");
+        decodedToEnqueued = metrics.histogram("pcv_latency_decoded_to_enqueued_seconds",
+                "Time from decoding a sample until its messages are queued for publishing");
+        for (int i = 0; i < decoder.getChannelCount(); i++) {
+            final int channel = i;
+            final MetricsRegistry channelMetrics = metrics.withLabel("channel", decoder.getChannel(i).getName());
+            channelMetrics.gauge("pcv_filter_emitted_total", "Channel values that passed the filter",
+                    () -> filter.getEmittedCount(channel));
+            channelMetrics.gauge("pcv_filter_suppressed_total", "Channel values left out by the filter",
+                    () -> filter.getSuppressedCount(channel));
+        }
+    }
+
+    @Override
+    public void run() {
+        final PacketView view = new PacketView();
+        final ChannelSnapshot snapshot = decoder.newSnapshot();
+        final String[] topics = new String[decoder.getChannelCount()];
+        final String[] liveTopics = new String[decoder.getChannelCount()];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = topicPrefix + decoder.getChannel(i).getName();
+            liveTopics[i] = liveTopicPrefix + topics[i];
+        }
+        long packets = 0;
+        try {
+            while (true) {
+                Packet packet = packetQueue.take();
+                final long start = System.nanoTime();
+                decoder.decode(packet.asView(view), snapshot);
+                final long decodedNanos = NanoClock.now();
+                final long receivedNanos = NanoClock.toEpochNanos(packet.getTimestamp());
+                receivedToDecoded.record(decodedNanos - receivedNanos);
+                final long timestampMillis = receivedNanos / NANOS_PER_MILLI;
+                if (aggregator != null) {
+                    aggregator.add(snapshot, timestampMillis, amazonQueue);
+                }
+                for (int i = 0; liveQueue != null && i < snapshot.size(); i++) {
+                    liveQueue.offer(new StreamerMessage(liveTopics[i], snapshot.format(i), packet.getTimestamp()));
+                }
+                long enqueuedNanos = 0;
+                for (int i = 0; publishRawValues && i < snapshot.size(); i++) {
+                    if (filter.accept(i, snapshot.getValue(i), timestampMillis)) {
+                        enqueuedNanos = NanoClock.now();
+                        amazonQueue.offer(new StreamerMessage(
+                                topics[i], snapshot.format(i), packet.getTimestamp(), enqueuedNanos));
+                    }
+                }
+                if (enqueuedNanos != 0) {
+                    decodedToEnqueued.record(enqueuedNanos - decodedNanos);
+                }
+                decodeTime.recordSince(start);
+                if (++packets % STATS_INTERVAL_PACKETS == 0) {
+                    logFilterStats();
+                }
+            }
+        } catch (InterruptedException e) {
+            if (aggregator != null) {
+                aggregator.flush(amazonQueue);
+            }
+            LOGGER.info("Packet decoding stopped");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void logFilterStats() {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+        for (int i = 0; i < decoder.getChannelCount(); i++) {
+            LOGGER.debug(decoder.getChannel(i).getName() + ": emitted " + filter.getEmittedCount(i)
+                    + ", suppressed " + filter.getSuppressedCount(i));
+        }
+    }
+}
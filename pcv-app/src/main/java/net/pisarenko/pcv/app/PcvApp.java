@@ -1,25 +1,135 @@
 package net.pisarenko.pcv.app;
 
-import com.google.common.collect.EvictingQueue;
-import com.google.common.collect.Queues;
+import net.pisarenko.pcv.comm.AdaptivePollRate;
 import net.pisarenko.pcv.comm.PacketReceiver;
+import net.pisarenko.pcv.comm.PacketSource;
+import net.pisarenko.pcv.comm.ReplayPcv;
+import net.pisarenko.pcv.comm.SyntheticPcv;
+import net.pisarenko.pcv.comm.USBConnection;
 import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.concurrent.Supervisor;
+import net.pisarenko.pcv.common.metrics.JmxMetrics;
+import net.pisarenko.pcv.common.metrics.MetricsRegistry;
+import net.pisarenko.pcv.common.metrics.PrometheusEndpoint;
+import net.pisarenko.pcv.common.recording.RecordingFormat;
+import net.pisarenko.pcv.common.recording.SessionRecorder;
+import net.pisarenko.pcv.common.queue.BlockingWaitStrategy;
+import net.pisarenko.pcv.common.queue.ConflatingQueue;
+import net.pisarenko.pcv.common.queue.OverflowPolicy;
+import net.pisarenko.pcv.common.queue.RingBuffer;
 import net.pisarenko.pcv.streamer.AmazonMqttStreamer;
+import net.pisarenko.pcv.streamer.BatchConfig;
+import net.pisarenko.pcv.streamer.BatchMode;
+import net.pisarenko.pcv.streamer.MessageSpool;
+import net.pisarenko.pcv.streamer.SslUtil;
 import net.pisarenko.pcv.streamer.StreamerMessage;
-import net.pisarenko.pcv.values.RPM;
-import net.pisarenko.pcv.values.Throttle;
+import net.pisarenko.pcv.streamer.WireFormat;
+import net.pisarenko.pcv.values.ChannelDecoder;
+import net.pisarenko.pcv.values.Channels;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Queue;
+import javax.management.JMException;
+import javax.usb.UsbException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class PcvApp {
     private static final Logger LOGGER = LoggerFactory.getLogger(PcvApp.class);
 
-    /** Max queue size: when Internet connection is lost we won't buffer more than X messages. */
+    /** Max queue size between the USB and decoding stages. */
     private static final int MAX_QUEUE_SIZE = 2000;
+    /** Where messages are kept while there is no Internet connection. */
+    private static final String SPOOL_DIRECTORY = "spool";
+    /** When Internet connection is lost we won't keep more than this on disk; the oldest data goes first. */
+    private static final long SPOOL_MAX_BYTES = 64L * 1024 * 1024;
+    /** Size of a single spool file. */
+    private static final int SPOOL_SEGMENT_BYTES = 1024 * 1024;
     /** How often to request values from the PCV. */
     private static final int UPDATE_FREQUENCY_MILLIS = 100;
+    /** How many value requests may be in flight on the USB pipes at once. */
+    private static final int USB_PIPELINE_DEPTH = 4;
+    /** Poll faster while RPM or throttle change quickly and slower while idling, instead of at a fixed frequency. */
+    private static final boolean ADAPTIVE_POLLING = false;
+    /** Adaptive polling: period while values change quickly. */
+    private static final long ADAPTIVE_MIN_PERIOD_MILLIS = 50;
+    /** Adaptive polling: period while idling or with the engine off. */
+    private static final long ADAPTIVE_MAX_PERIOD_MILLIS = 1000;
+
+    /** Publish this many messages per MQTT payload at most. 1 disables batching. */
+    private static final int BATCH_MAX_MESSAGES = 20;
+    /** Upper bound for the size of a batched MQTT payload. */
+    private static final int BATCH_MAX_BYTES = 8192;
+    /** How long a message may wait for its batch to fill up. */
+    private static final long BATCH_MAX_LINGER_MILLIS = 1000;
+    private static final String BATCH_TOPIC = "Batch";
+    /** How many publishes may wait for the broker's acknowledgement at once. 1 waits for each one. */
+    private static final int PUBLISH_WINDOW = 8;
+    /** Payload encoding. BINARY needs pcv-telemetry-decoder on the consuming side. */
+    private static final WireFormat WIRE_FORMAT = WireFormat.JSON;
+    /** Publish timestamps with microseconds instead of whole seconds. */
+    private static final boolean PRECISE_TIMESTAMPS = false;
+
+    /** Emulated devices (see {@link #createSource}): how long they take to answer a request. */
+    private static final long EMULATOR_LATENCY_MICROS = 500;
+    /** Synthetic device: send an unsolicited CAN_PASS packet after this many responses. 0 disables. */
+    private static final int SYNTHETIC_UNSOLICITED_EVERY = 100;
+    /** Replayed device: start over at the end of the file instead of disconnecting. */
+    private static final boolean REPLAY_LOOP = true;
+
+    /**
+     * Besides the full history, publish the latest value of every channel on a separate connection, skipping values
+     * that went stale while the link was busy. For live dashboards. Off by default: every decoded value is sent,
+     * unfiltered and unbatched, and the second connection uses the client ID {@code <CLIENT_ID>-live}
+     * ({@code <CLIENT_ID>-<device>-live} with several PCVs), which the AWS IoT policy has to allow.
+     */
+    private static final boolean LIVE_FEED = false;
+    /** Topic prefix of the live feed. */
+    private static final String LIVE_TOPIC_PREFIX = "live/";
+
+    /** Run the pipeline stages on virtual threads, if the JVM has them (Java 21). */
+    private static final boolean VIRTUAL_THREADS = true;
+    /** On shutdown, how long the stages get to work off their queues. */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    /** Port of the Prometheus endpoint on localhost. 0 disables it; the metrics are on JMX either way. */
+    private static final int METRICS_PORT = 9400;
+
+    /** Record every received packet for later replay, one file per run. Off by default to spare the SD card. */
+    private static final boolean RECORDING = false;
+    /** Where the recordings go. */
+    private static final String RECORDING_DIRECTORY = "recordings";
+    /** The oldest recordings are deleted when a new one starts so that all of them take at most this much space... */
+    private static final long RECORDING_MAX_BYTES = 512L * 1024 * 1024;
+    /** ...and a run stops recording when its recording reaches this size. */
+    private static final long RECORDING_FILE_MAX_BYTES = 128L * 1024 * 1024;
+
+    /** Publish RPM only when it changed by this much... */
+    private static final double RPM_DEADBAND = 50;
+    /** ...and throttle (0 to 1000) when it changed by this much. */
+    private static final double THROTTLE_DEADBAND = 5;
+    /** Publish a channel at most this often. */
+    private static final long FILTER_MIN_INTERVAL_MILLIS = 0;
+    /** Publish a channel at least this often, even if the value did not change. */
+    private static final long FILTER_HEARTBEAT_MILLIS = 10000;
+
+    /** Publish min, max, mean... of every channel over windows of these lengths. Empty disables aggregation. */
+    private static final long[] AGGREGATE_WINDOWS_MILLIS = {1000, 10000};
+    /** How many values per window to keep for percentiles. 0 disables percentiles. */
+    private static final int AGGREGATE_PERCENTILE_SAMPLES = 100;
+    /** Whether to publish individual (filtered) values besides the aggregates. */
+    private static final boolean PUBLISH_RAW_VALUES = false;
 
     /** Path to the Amazon root CA. */
     private static String ROOT_CA_PATH = "rootCA.crt";
@@ -30,45 +140,285 @@ public class PcvApp {
     private static String SERVER_URL = "ssl://data.iot.eu-west-1.amazonaws.com:8883";
     private static String CLIENT_ID = "KTMDuke390";
 
-    public static void main(String[] args) {
-        Queue<Packet> packetQueue = Queues.synchronizedQueue(EvictingQueue.<Packet>create(MAX_QUEUE_SIZE));
-        Queue<StreamerMessage> streamerQueue = Queues.synchronizedQueue(EvictingQueue.<StreamerMessage>create(MAX_QUEUE_SIZE));
+    private final String serverUrl;
+    private final String clientId;
+    private final String rootCaPath;
+    private final String certPath;
+    private final String privateKeyPath;
+    /** Spool and recording directories are relative to this. */
+    private final Path dataDirectory;
+    private final MetricsRegistry metrics;
+
+    private final Supervisor supervisor = new Supervisor(VIRTUAL_THREADS);
+    /** To be closed once the pipelines are stopped. */
+    private final List<Closeable> resources = new ArrayList<>();
+
+    private long pollPeriodNanos = TimeUnit.MILLISECONDS.toNanos(UPDATE_FREQUENCY_MILLIS);
+    private boolean preciseTimestamps = PRECISE_TIMESTAMPS;
+    private boolean recording = RECORDING;
+    private boolean publishRawValues = PUBLISH_RAW_VALUES;
+
+    /**
+     * Sets up pipelines that publish to the given MQTT broker with the given credentials (PEM files). Nothing runs
+     * before {@link #startPipeline}.
+     */
+    public PcvApp(final String serverUrl, final String clientId, final String rootCaPath, final String certPath,
+                  final String privateKeyPath, final Path dataDirectory, final MetricsRegistry metrics) {
+        this.serverUrl = serverUrl;
+        this.clientId = clientId;
+        this.rootCaPath = rootCaPath;
+        this.certPath = certPath;
+        this.privateKeyPath = privateKeyPath;
+        this.dataDirectory = dataDirectory;
+        this.metrics = metrics;
+        supervisor.setMetrics(metrics);
+    }
+
+    /**
+     * With no arguments every PCV on the USB bus is used; with several, each gets a pipeline of its own. "synthetic"
+     * emulates a device, and a path to a session recording or a USB dump replays it as if it came from the device.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        PcvApp app = new PcvApp(SERVER_URL, CLIENT_ID, ROOT_CA_PATH, CERT_PATH, PRIVATE_KEY_PATH, Paths.get(""),
+                createMetrics());
+
+        if (args.length > 0) {
+            app.startPipeline(createSource(args), null);
+        } else {
+            List<String> devices = Collections.emptyList();
+            try {
+                devices = USBConnection.listDevices();
+            } catch (UsbException e) {
+                LOGGER.debug("Failed to list USB devices", e);
+            }
+            if (devices.size() <= 1) {
+                // also covers starting before the PCV is plugged in
+                app.startPipeline(PacketSource.USB, null);
+            } else {
+                LOGGER.info("Found " + devices.size() + " PCVs: " + devices);
+                for (String device : devices) {
+                    app.startPipeline(PacketSource.usb(device), device);
+                }
+            }
+        }
+        // loads the credentials while the PCV is being connected; streamers only connect once there is data
+        app.prepareTls();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> app.stop(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS), "shutdown"));
+        app.awaitTermination();
+    }
+
+    /**
+     * Polls the device at this period instead of every {@link #UPDATE_FREQUENCY_MILLIS}, e.g. to load test with an
+     * emulated device. Must be called before the pipelines are started.
+     */
+    public void setPollPeriod(final long period, final TimeUnit unit) {
+        this.pollPeriodNanos = unit.toNanos(period);
+    }
+
+    /**
+     * See {@link #PRECISE_TIMESTAMPS}. Must be called before the pipelines are started.
+     */
+    public void setPreciseTimestamps(final boolean preciseTimestamps) {
+        this.preciseTimestamps = preciseTimestamps;
+    }
+
+    /**
+     * Turns recording every received packet (see {@link #RECORDING_DIRECTORY}) on or off. Must be called before the
+     * pipelines are started.
+     */
+    public void setRecording(final boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * See {@link #PUBLISH_RAW_VALUES}. Must be called before the pipelines are started.
+     */
+    public void setPublishRawValues(final boolean publishRawValues) {
+        this.publishRawValues = publishRawValues;
+    }
+
+    /**
+     * Starts loading the MQTT credentials in the background, so that they are likely ready when the first message is
+     * to be published.
+     */
+    public void prepareTls() {
+        SslUtil.prepareSocketFactory(rootCaPath, certPath, privateKeyPath, "");
+    }
+
+    /**
+     * Stops the pipelines, giving them the timeout to publish what they have, and closes their resources.
+     */
+    public void stop(final long timeout, final TimeUnit unit) {
+        supervisor.shutdown(timeout, unit);
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close " + resource, e);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the pipelines are stopped.
+     */
+    public void awaitTermination() throws InterruptedException {
+        supervisor.awaitTermination();
+    }
+
+    /**
+     * Starts receiving, decoding and publishing for one device. Pipelines share nothing but the metrics registry, so
+     * that devices do not slow each other down. With a device ID, topics, the spool directory, the MQTT client ID, the
+     * recording and the metrics are tagged with it.
+     */
+    public void startPipeline(final PacketSource source, final String device) throws IOException {
+        final String tag = device == null ? "" : device;
+        final String topicPrefix = device == null ? "" : device + "/";
+        final String clientId = device == null ? this.clientId : this.clientId + "-" + device;
+        final MetricsRegistry metrics = device == null ? this.metrics : this.metrics.withLabel("device", device);
+
+        RingBuffer<Packet> packetQueue =
+                new RingBuffer<>(MAX_QUEUE_SIZE, OverflowPolicy.DROP_OLDEST, new BlockingWaitStrategy());
+        MessageSpool streamerQueue =
+                new MessageSpool(dataDirectory.resolve(SPOOL_DIRECTORY).resolve(tag), SPOOL_MAX_BYTES,
+                        SPOOL_SEGMENT_BYTES);
+        // what the stopped streamer did not send is forced to disk for the next run
+        resources.add(streamerQueue::sync);
+        registerQueueMetrics(metrics, packetQueue, streamerQueue);
 
         // fetches fresh data from the PCV over USB
-        new Thread(new PacketReceiver(UPDATE_FREQUENCY_MILLIS, packetQueue)).start();
+        PacketReceiver receiver = new PacketReceiver(source, UPDATE_FREQUENCY_MILLIS, packetQueue, USB_PIPELINE_DEPTH);
+        receiver.setPollPeriod(pollPeriodNanos, TimeUnit.NANOSECONDS);
+        receiver.setMetrics(metrics);
+        if (ADAPTIVE_POLLING) {
+            receiver.setAdaptiveRate(new AdaptivePollRate(ADAPTIVE_MIN_PERIOD_MILLIS, ADAPTIVE_MAX_PERIOD_MILLIS));
+        }
+        if (recording) {
+            SessionRecorder recorder = createRecorder(tag);
+            resources.add(recorder);
+            receiver.setRecorder(recorder);
+            supervisor.supervise("recording-flush" + threadSuffix(device), () -> flushPeriodically(recorder));
+        }
+        supervisor.supervise("receiver" + threadSuffix(device), receiver);
         // transform data from USB to JSON messages for Amazon consumption
-        new Thread(new PacketToAmazonMessage(streamerQueue, packetQueue)).start();
+        ChannelDecoder decoder = new ChannelDecoder(Channels.CHANNEL_STATUS);
+        Map<String, FilterRule> filterRules = new HashMap<>();
+        filterRules.put(Channels.RPM.getName(),
+                FilterRule.absolute(RPM_DEADBAND, FILTER_MIN_INTERVAL_MILLIS, FILTER_HEARTBEAT_MILLIS));
+        filterRules.put(Channels.THROTTLE.getName(),
+                FilterRule.absolute(THROTTLE_DEADBAND, FILTER_MIN_INTERVAL_MILLIS, FILTER_HEARTBEAT_MILLIS));
+        PacketToAmazonMessage packetToAmazonMessage = new PacketToAmazonMessage(
+                streamerQueue, packetQueue, decoder, new DeadbandFilter(decoder, filterRules));
+        packetToAmazonMessage.setTopicPrefix(topicPrefix);
+        if (AGGREGATE_WINDOWS_MILLIS.length > 0) {
+            WindowAggregator aggregator =
+                    new WindowAggregator(decoder, AGGREGATE_WINDOWS_MILLIS, AGGREGATE_PERCENTILE_SAMPLES);
+            aggregator.setTopicPrefix(topicPrefix);
+            packetToAmazonMessage.setAggregator(aggregator, publishRawValues);
+        }
+        packetToAmazonMessage.setMetrics(metrics);
+        ConflatingQueue<String, StreamerMessage> liveQueue = null;
+        if (LIVE_FEED) {
+            liveQueue = new ConflatingQueue<>(StreamerMessage::getTopic);
+            packetToAmazonMessage.setLiveQueue(liveQueue, LIVE_TOPIC_PREFIX);
+            metrics.gauge("pcv_live_conflated_total", "Live values replaced by a newer one before they were published",
+                    liveQueue::getConflatedCount);
+        }
+        supervisor.supervise("decoder" + threadSuffix(device), packetToAmazonMessage, packetQueue);
         // sends data to Amazon
-        new Thread(new AmazonMqttStreamer(SERVER_URL, CLIENT_ID, streamerQueue, ROOT_CA_PATH, CERT_PATH, PRIVATE_KEY_PATH)).start();
+        AmazonMqttStreamer streamer =
+                new AmazonMqttStreamer(serverUrl, clientId, streamerQueue, rootCaPath, certPath, privateKeyPath);
+        if (BATCH_MAX_MESSAGES > 1) {
+            streamer.setBatchConfig(new BatchConfig(BatchMode.PER_TOPIC, BATCH_MAX_MESSAGES, BATCH_MAX_BYTES,
+                    BATCH_MAX_LINGER_MILLIS, topicPrefix + BATCH_TOPIC));
+        }
+        streamer.setWireFormat(WIRE_FORMAT);
+        streamer.setPreciseTimestamps(preciseTimestamps);
+        streamer.setPublishWindow(PUBLISH_WINDOW);
+        streamer.setMetrics(metrics);
+        supervisor.supervise("streamer" + threadSuffix(device), streamer, streamerQueue);
+        if (liveQueue != null) {
+            // one message at a time, so that every publish carries the freshest value
+            AmazonMqttStreamer liveStreamer = new AmazonMqttStreamer(
+                    serverUrl, clientId + "-live", liveQueue, rootCaPath, certPath, privateKeyPath);
+            liveStreamer.setWireFormat(WIRE_FORMAT);
+            liveStreamer.setPreciseTimestamps(preciseTimestamps);
+            supervisor.supervise("live-streamer" + threadSuffix(device), liveStreamer, liveQueue);
+        }
     }
 
-    @SuppressWarnings("squid:S2189")
-    private static class PacketToAmazonMessage implements Runnable {
-        private Queue<StreamerMessage> amazonQueue;
-        private Queue<Packet> packetQueue;
+    private static String threadSuffix(final String device) {
+        return device == null ? "" : "-" + device;
+    }
 
-        public PacketToAmazonMessage(Queue<StreamerMessage> amazonQueue, Queue<Packet> packetQueue) {
-            this.amazonQueue = amazonQueue;
-            this.packetQueue = packetQueue;
+    private static MetricsRegistry createMetrics() throws IOException {
+        final MetricsRegistry metrics = new MetricsRegistry();
+        try {
+            JmxMetrics.register(metrics);
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register metrics with JMX", e);
+        }
+        if (METRICS_PORT > 0) {
+            new PrometheusEndpoint(metrics).start(METRICS_PORT);
         }
+        return metrics;
+    }
 
-        @Override
-        public void run() {
-            try {
-                while (true) {
-                    if (!packetQueue.isEmpty()) {
-                        Packet packet = packetQueue.poll();
-                        int rpm = RPM.fromPacket(packet);
-                        int throttle = Throttle.fromPacket(packet);
-                        amazonQueue.add(new StreamerMessage("RPM", "" + rpm, packet.getTimestamp()));
-                        amazonQueue.add(new StreamerMessage("Throttle", "" + throttle, packet.getTimestamp()));
-                    } else {
-                        Thread.sleep(50);
-                    }
+    private static void registerQueueMetrics(final MetricsRegistry metrics, final RingBuffer<Packet> packetQueue,
+                                             final MessageSpool spool) {
+        metrics.gauge("pcv_packet_queue_size", "Packets waiting to be decoded", packetQueue::size);
+        metrics.gauge("pcv_packet_queue_dropped_total", "Packets evicted because decoding fell behind",
+                packetQueue::getDroppedCount);
+        metrics.gauge("pcv_spool_size", "Messages waiting to be published", spool::size);
+        metrics.gauge("pcv_spool_bytes", "Bytes of messages kept on disk", spool::getBacklogBytes);
+        metrics.gauge("pcv_spool_dropped_total", "Messages evicted because the spool was full",
+                spool::getDroppedCount);
+        metrics.gauge("pcv_spool_appended_total", "Messages handed to the spool for publishing",
+                spool::getAppendedCount);
+    }
+
+    private static PacketSource createSource(final String[] args) {
+        if (args.length == 0) {
+            return PacketSource.USB;
+        }
+        if ("synthetic".equals(args[0])) {
+            LOGGER.info("Using a synthetic PCV");
+            final SyntheticPcv synthetic = new SyntheticPcv(EMULATOR_LATENCY_MICROS);
+            synthetic.setUnsolicitedEvery(SYNTHETIC_UNSOLICITED_EVERY);
+            return synthetic;
+        }
+        LOGGER.info("Replaying {}", args[0]);
+        return new ReplayPcv(Paths.get(args[0]), EMULATOR_LATENCY_MICROS, REPLAY_LOOP);
+    }
+
+    private SessionRecorder createRecorder(final String tag) throws IOException {
+        final Path directory = Files.createDirectories(dataDirectory.resolve(RECORDING_DIRECTORY));
+        final String name = "session-" + DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").format(LocalDateTime.now())
+                + (tag.isEmpty() ? "" : "-" + tag);
+        SessionRecorder.deleteOldest(directory, RECORDING_MAX_BYTES - RECORDING_FILE_MAX_BYTES);
+        final SessionRecorder recorder = SessionRecorder.create(directory.resolve(name + RecordingFormat.EXTENSION));
+        recorder.setMaxBytes(RECORDING_FILE_MAX_BYTES);
+        return recorder;
+    }
+
+    /**
+     * Forces what the recorder buffered to disk every so often, so that cutting the ignition loses at most that much.
+     */
+    @SuppressWarnings("squid:S2189")
+    private static void flushPeriodically(final SessionRecorder recorder) {
+        try {
+            while (true) {
+                TimeUnit.MILLISECONDS.sleep(SessionRecorder.FLUSH_INTERVAL_MILLIS);
+                try {
+                    recorder.flushIfDue();
+                } catch (IOException e) {
+                    LOGGER.debug("Failed to flush recording", e);
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 }
@@ -0,0 +1,160 @@
+package net.pisarenko.pcv.app;
+
+import net.pisarenko.pcv.streamer.StreamerMessage;
+import net.pisarenko.pcv.values.ChannelDecoder;
+import net.pisarenko.pcv.values.ChannelSnapshot;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Rolls channel values up into tumbling windows, e.g. of 1 and 10 seconds, aligned to the epoch. When a value arrives
+ * for a later window, the aggregates of the finished one (min, max, mean, last, count and optionally percentiles) are
+ * published as a single message on {@code <channel>/<window>}, e.g. {@code RPM/10s}, with a JSON object as value.
+ *
+ * Accumulation works on primitive fields and preallocated arrays; only closing a window allocates. For percentiles a
+ * uniform random sample (reservoir sampling) of up to {@code percentileSamples} values of the whole window is kept.
+ *
+ * Not thread safe. A window is only closed by a later value, so nothing is published while no data arrives; when the
+ * pipeline stops, {@link #flush} publishes the windows that are still open.
+ */
+public class WindowAggregator {
+    private final ChannelDecoder decoder;
+    private final long[] windowsMillis;
+    /** Accumulators by window, then channel. */
+    private final Accumulator[][] accumulators;
+    private String topicPrefix = "";
+
+    public WindowAggregator(final ChannelDecoder decoder, final long[] windowsMillis, final int percentileSamples) {
+        this.decoder = decoder;
+        this.windowsMillis = windowsMillis.clone();
+        this.accumulators = new Accumulator[windowsMillis.length][decoder.getChannelCount()];
+        for (Accumulator[] byChannel : accumulators) {
+            for (int i = 0; i < byChannel.length; i++) {
+                byChannel[i] = new Accumulator(percentileSamples);
+            }
+        }
+    }
+
+    /**
+     * Puts a prefix in front of the topics, e.g. to tell devices apart.
+     */
+    public void setTopicPrefix(final String topicPrefix) {
+        this.topicPrefix = topicPrefix;
+    }
+
+    /**
+     * Adds all values of the snapshot, publishing the aggregates of windows that are over.
+     */
+    public void add(final ChannelSnapshot snapshot, final long timestampMillis, final Queue<StreamerMessage> out) {
+        for (int w = 0; w < windowsMillis.length; w++) {
+            final long windowStart = timestampMillis - Math.floorMod(timestampMillis, windowsMillis[w]);
+            for (int i = 0; i < snapshot.size(); i++) {
+                final Accumulator accumulator = accumulators[w][i];
+                if (accumulator.count > 0 && accumulator.windowStart != windowStart) {
+                    out.offer(createMessage(w, i, accumulator));
+                    accumulator.reset();
+                }
+                accumulator.windowStart = windowStart;
+                accumulator.add(snapshot.getValue(i));
+            }
+        }
+    }
+
+    /**
+     * Publishes the aggregates of the windows that are still open, e.g. when the pipeline stops, and starts over.
+     */
+    public void flush(final Queue<StreamerMessage> out) {
+        for (int w = 0; w < windowsMillis.length; w++) {
+            for (int i = 0; i < accumulators[w].length; i++) {
+                final Accumulator accumulator = accumulators[w][i];
+                if (accumulator.count > 0) {
+                    out.offer(createMessage(w, i, accumulator));
+                    accumulator.reset();
+                }
+            }
+        }
+    }
+
+    private StreamerMessage createMessage(final int window, final int channel, final Accumulator accumulator) {
+        final StringBuilder value = new StringBuilder(128)
+                .append("{\"min\":").append(format(accumulator.min))
+                .append(",\"max\":").append(format(accumulator.max))
+                .append(",\"mean\":").append(format(accumulator.sum / accumulator.count))
+                .append(",\"last\":").append(format(accumulator.last))
+                .append(",\"count\":").append(accumulator.count);
+        if (accumulator.sampleCount > 0) {
+            Arrays.sort(accumulator.samples, 0, accumulator.sampleCount);
+            value.append(",\"p50\":").append(format(accumulator.percentile(50)))
+                    .append(",\"p95\":").append(format(accumulator.percentile(95)));
+        }
+        value.append('}');
+
+        final String topic =
+                topicPrefix + decoder.getChannel(channel).getName() + "/" + formatWindow(windowsMillis[window]);
+        final LocalDateTime start = LocalDateTime.ofInstant(Instant.ofEpochMilli(accumulator.windowStart), ZoneOffset.UTC);
+        return StreamerMessage.ofJson(topic, value.toString(), start);
+    }
+
+    private static String format(final double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static String formatWindow(final long windowMillis) {
+        return windowMillis % 1000 == 0 ? (windowMillis / 1000) + "s" : windowMillis + "ms";
+    }
+
+    private static class Accumulator {
+        private long windowStart;
+        private long count;
+        private double min;
+        private double max;
+        private double sum;
+        private double last;
+        private final double[] samples;
+        private int sampleCount;
+
+        Accumulator(final int percentileSamples) {
+            this.samples = new double[percentileSamples];
+        }
+
+        void add(final double value) {
+            if (count == 0 || value < min) {
+                min = value;
+            }
+            if (count == 0 || value > max) {
+                max = value;
+            }
+            sum += value;
+            last = value;
+            count++;
+            if (sampleCount < samples.length) {
+                samples[sampleCount++] = value;
+            } else if (sampleCount > 0) {
+                // keeps every value of the window with the same probability
+                final long slot = ThreadLocalRandom.current().nextLong(count);
+                if (slot < sampleCount) {
+                    samples[(int) slot] = value;
+                }
+            }
+        }
+
+        /**
+         * Nearest-rank percentile; the samples must be sorted.
+         */
+        double percentile(final int percent) {
+            final int rank = (int) Math.ceil(percent / 100.0 * sampleCount);
+            return samples[Math.max(rank, 1) - 1];
+        }
+
+        void reset() {
+            count = 0;
+            sum = 0;
+            sampleCount = 0;
+        }
+    }
+}
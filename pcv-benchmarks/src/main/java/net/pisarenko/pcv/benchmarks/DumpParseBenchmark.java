@@ -0,0 +1,55 @@
+package net.pisarenko.pcv.benchmarks;
+
+import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a USB dump into packets, over a generated dump file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DumpParseBenchmark {
+    @Param({"1000", "10000"})
+    private int packets;
+
+    private Path dump;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dump = Files.createTempFile("pcv-dump", ".txt");
+        SyntheticPackets.writeDump(dump, packets);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dump);
+    }
+
+    @Benchmark
+    public List<Packet> parseUSBPackets() throws Exception {
+        return PacketUtil.parseUSBPackets(dump.toString());
+    }
+}
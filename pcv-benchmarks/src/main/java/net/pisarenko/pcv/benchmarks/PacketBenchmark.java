@@ -0,0 +1,86 @@
+package net.pisarenko.pcv.benchmarks;
+
+import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketView;
+import net.pisarenko.pcv.values.ChannelDecoder;
+import net.pisarenko.pcv.values.ChannelSnapshot;
+import net.pisarenko.pcv.values.Channels;
+import net.pisarenko.pcv.values.RPM;
+import net.pisarenko.pcv.values.Throttle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating packets and reading channel values out of them, once per sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBenchmark {
+    private byte[] received;
+    private LocalDateTime timestamp;
+    private Packet packet;
+    private PacketView view;
+    private ChannelDecoder decoder;
+    private ChannelSnapshot snapshot;
+
+    @Setup
+    public void setUp() {
+        received = SyntheticPackets.channelStatusResponse(4508, 405);
+        timestamp = LocalDateTime.now();
+        packet = Packet.createFromReceivedData(received, timestamp);
+        view = new PacketView().wrap(received);
+        decoder = new ChannelDecoder(Channels.CHANNEL_STATUS);
+        snapshot = decoder.newSnapshot();
+    }
+
+    @Benchmark
+    public Packet createFromReceivedData() {
+        return Packet.createFromReceivedData(received, timestamp);
+    }
+
+    @Benchmark
+    public Packet createStatsRequestPacket() {
+        return Packet.createStatsRequestPacket();
+    }
+
+    @Benchmark
+    public long getPayloadFragment() {
+        return packet.getPayloadFragment(1, 2);
+    }
+
+    @Benchmark
+    public int rpmFromPacket() {
+        return RPM.fromPacket(packet);
+    }
+
+    @Benchmark
+    public int throttleFromPacket() {
+        return Throttle.fromPacket(packet);
+    }
+
+    @Benchmark
+    public int rpmFromView() {
+        return RPM.fromView(view);
+    }
+
+    @Benchmark
+    public ChannelSnapshot decodeAllChannels() {
+        decoder.decode(view, snapshot);
+        return snapshot;
+    }
+}
@@ -0,0 +1,131 @@
+package net.pisarenko.pcv.benchmarks;
+
+import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.queue.BlockingWaitStrategy;
+import net.pisarenko.pcv.common.queue.OverflowPolicy;
+import net.pisarenko.pcv.common.queue.ParkingWaitStrategy;
+import net.pisarenko.pcv.common.queue.RingBuffer;
+import net.pisarenko.pcv.common.queue.WaitStrategy;
+import net.pisarenko.pcv.common.queue.YieldingWaitStrategy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handing packets from the USB thread to the decoding thread through the queue PcvApp uses, one producer and one
+ * consumer. The consumer polls with a short timeout so that it never blocks past the end of an iteration.
+ *
+ * The producer runs flat out, far faster than the device, so with PcvApp's DROP_OLDEST policy the queue is full most of
+ * the time and most offers evict an element. The group score counts those offers too; the auxiliary {@code delivered}
+ * and {@code dropped} counters tell handoffs and evictions apart. With BLOCK the producer waits for room, which measures
+ * the handoff itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class QueueHandoffBenchmark {
+    private static final int CAPACITY = 2000;
+
+    @Param({"blocking", "yielding", "parking"})
+    private String waitStrategy;
+
+    @Param({"DROP_OLDEST", "BLOCK"})
+    private OverflowPolicy overflowPolicy;
+
+    private RingBuffer<Packet> queue;
+    private Packet packet;
+
+    @Setup
+    public void setUp() {
+        queue = new RingBuffer<>(CAPACITY, overflowPolicy, createWaitStrategy());
+        packet = Packet.createFromReceivedData(SyntheticPackets.channelStatusResponse(4508, 405), LocalDateTime.now());
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean offer(final ProducerCounters counters) throws InterruptedException {
+        final boolean offered = overflowPolicy == OverflowPolicy.BLOCK
+                ? queue.offer(packet, 1, TimeUnit.MILLISECONDS)
+                : queue.offer(packet);
+        counters.countDropped(queue.getDroppedCount());
+        return offered;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public Packet poll(final ConsumerCounters counters) throws InterruptedException {
+        final Packet polled = queue.poll(1, TimeUnit.MILLISECONDS);
+        if (polled != null) {
+            counters.delivered++;
+        }
+        return polled;
+    }
+
+    /**
+     * Elements that reached the consumer, reported per time unit next to the group score.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ConsumerCounters {
+        public long delivered;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            delivered = 0;
+        }
+    }
+
+    /**
+     * Elements evicted to make room for newer ones, reported per time unit next to the group score.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ProducerCounters {
+        public long dropped;
+        private long lastDroppedCount = -1;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            dropped = 0;
+            lastDroppedCount = -1;
+        }
+
+        void countDropped(final long droppedCount) {
+            if (lastDroppedCount >= 0) {
+                dropped += droppedCount - lastDroppedCount;
+            }
+            lastDroppedCount = droppedCount;
+        }
+    }
+
+    private WaitStrategy createWaitStrategy() {
+        switch (waitStrategy) {
+            case "yielding":
+                return new YieldingWaitStrategy();
+            case "parking":
+                return new ParkingWaitStrategy(TimeUnit.MICROSECONDS.toNanos(50));
+            default:
+                return new BlockingWaitStrategy();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package net.pisarenko.pcv.benchmarks;
+
+import net.pisarenko.pcv.streamer.AmazonMqttStreamer;
+import net.pisarenko.pcv.streamer.BinaryFrameEncoder;
+import net.pisarenko.pcv.streamer.StreamerMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning messages into MQTT payloads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    /** Messages per batch for the binary encoding. */
+    private static final int BATCH_SIZE = 20;
+
+    private StreamerMessage message;
+    private List<StreamerMessage> batch;
+
+    @Setup
+    public void setUp() {
+        final LocalDateTime timestamp = LocalDateTime.now();
+        message = new StreamerMessage("RPM", "4508", timestamp);
+        batch = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(new StreamerMessage("RPM", "" + (4500 + i), timestamp.plusNanos(i * 100000000L)));
+        }
+    }
+
+    @Benchmark
+    public String createJsonString() {
+        return AmazonMqttStreamer.createJsonString(message);
+    }
+
+    @Benchmark
+    public byte[] encodeBinaryBatch() {
+        return BinaryFrameEncoder.encode(batch);
+    }
+}
@@ -0,0 +1,59 @@
+package net.pisarenko.pcv.benchmarks;
+
+import net.pisarenko.pcv.common.Packet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Made up packets and USB dumps to benchmark with.
+ */
+class SyntheticPackets {
+    private static final DateTimeFormatter DUMP_TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
+
+    private SyntheticPackets() {}
+
+    /**
+     * A GET_CHANNEL_STATUS response as received over USB, with the given RPM and throttle.
+     */
+    static byte[] channelStatusResponse(final int rpm, final int throttle) {
+        final byte[] data = Packet.createStatsRequestPacket().getRawPacket();
+        data[7] = 0;
+        data[6] = 29;
+        data[8 + 1] = (byte) rpm;
+        data[8 + 2] = (byte) (rpm >> 8);
+        data[8 + 9] = (byte) throttle;
+        data[8 + 10] = (byte) (throttle >> 8);
+        return data;
+    }
+
+    /**
+     * Writes a dump in the format of HHD Device Monitoring Studio text output, alternating requests and responses.
+     */
+    static void writeDump(final Path file, final int packets) throws IOException {
+        final LocalDateTime start = LocalDateTime.of(2017, 4, 16, 12, 0);
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_16LE)) {
+            for (int seq = 1; seq <= packets; seq++) {
+                final boolean up = seq % 2 == 0;
+                final byte[] data = up
+                        ? channelStatusResponse(1000 + seq % 8000, seq % 1000)
+                        : Packet.createStatsRequestPacket().getRawPacket();
+
+                writer.write(seq + "\tURB Transfer\t" + DUMP_TIMESTAMP_FORMAT.format(start.plusSeconds(seq / 10)) + " \r\n");
+                writer.write(" Direction\t\"" + (up ? "Up" : "Down") + "\"\r\n");
+                for (int line = 0; line < 4; line++) {
+                    final StringBuilder hex = new StringBuilder(String.format(" %04x: ", line * 16));
+                    for (int i = 0; i < 16; i++) {
+                        hex.append(String.format("%02x ", data[line * 16 + i]));
+                    }
+                    writer.write(hex.append(" ................\r\n").toString());
+                }
+            }
+        }
+    }
+}
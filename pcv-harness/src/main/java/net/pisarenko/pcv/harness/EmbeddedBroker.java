@@ -0,0 +1,311 @@
+package net.pisarenko.pcv.harness;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Just enough of an MQTT 3.1.1 broker over TLS with client certificates to stand in for AWS IoT: it accepts
+ * connections, keeps track of persistent sessions, acknowledges QoS 1 publishes and answers pings. Published messages
+ * are handed to a listener instead of being routed to subscribers.
+ *
+ * The broker can be stopped and started again on the same port to see how clients cope with a lost connection.
+ */
+public class EmbeddedBroker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedBroker.class);
+
+    private static final int CONNECT = 1;
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int SUBSCRIBE = 8;
+    private static final int SUBACK = 9;
+    private static final int PINGREQ = 12;
+    private static final int PINGRESP = 13;
+    private static final int DISCONNECT = 14;
+
+    private static final int CONNACK_ACCEPTED = 0;
+    private static final int CLEAN_SESSION_FLAG = 0x02;
+    private static final int SUBACK_FAILURE = 0x80;
+
+    /**
+     * Receives every publish. Called from the connection's thread, so it should return quickly.
+     */
+    @FunctionalInterface
+    public interface PublishListener {
+        void published(String clientId, String topic, byte[] payload, boolean duplicate);
+    }
+
+    private final SSLContext sslContext;
+    private final PublishListener listener;
+
+    /** Client IDs with a persistent session, i.e. ones that connected with clean session off. */
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile SSLServerSocket serverSocket;
+    private int port;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong resumedSessions = new AtomicLong();
+    private final AtomicLong abbreviatedHandshakes = new AtomicLong();
+
+    public EmbeddedBroker(final SSLContext sslContext, final PublishListener listener) {
+        this.sslContext = sslContext;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts listening on the loopback interface. Port 0 picks a free port the first time and keeps it across restarts.
+     * Returns the port.
+     */
+    public synchronized int start(final int requestedPort) throws IOException {
+        final SSLServerSocket socket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket();
+        socket.setReuseAddress(true);
+        socket.setNeedClientAuth(true);
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port == 0 ? requestedPort : port));
+        port = socket.getLocalPort();
+        serverSocket = socket;
+
+        final Thread acceptor = new Thread(() -> accept(socket), "broker-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOGGER.info("Broker listening on port {}", port);
+        return port;
+    }
+
+    /**
+     * Stops listening and drops every connection, without a DISCONNECT, the way a crashed broker or a dead link would.
+     * Persistent sessions are kept.
+     */
+    public synchronized void stop() {
+        final SSLServerSocket socket = serverSocket;
+        serverSocket = null;
+        closeQuietly(socket);
+        dropConnections();
+        LOGGER.info("Broker stopped");
+    }
+
+    /**
+     * Stops the broker and starts it again on the same port after the given downtime.
+     */
+    public void restart(final long downtime, final TimeUnit unit) throws IOException, InterruptedException {
+        stop();
+        unit.sleep(downtime);
+        start(port);
+    }
+
+    /**
+     * Drops every client connection but keeps listening.
+     */
+    public void dropConnections() {
+        for (Socket connection : connections) {
+            closeQuietly(connection);
+        }
+    }
+
+    public String getUrl() {
+        return "ssl://localhost:" + port;
+    }
+
+    /** Connections accepted, including reconnects. */
+    public long getAcceptedConnections() {
+        return accepted.get();
+    }
+
+    /** Connections that picked up an existing persistent session. */
+    public long getResumedSessions() {
+        return resumedSessions.get();
+    }
+
+    /** Connections that resumed an earlier TLS session instead of doing a full handshake. */
+    public long getAbbreviatedHandshakes() {
+        return abbreviatedHandshakes.get();
+    }
+
+    private void accept(final SSLServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                final Socket connection = socket.accept();
+                connections.add(connection);
+                final Thread thread = new Thread(() -> serve((SSLSocket) connection), "broker-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    LOGGER.warn("Failed to accept connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(final SSLSocket socket) {
+        String clientId = null;
+        try {
+            final long handshakeStart = System.currentTimeMillis();
+            socket.startHandshake();
+            final SSLSession session = socket.getSession();
+            if (session.getCreationTime() < handshakeStart) {
+                abbreviatedHandshakes.incrementAndGet();
+            }
+            accepted.incrementAndGet();
+
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                final int header = in.readUnsignedByte();
+                final byte[] body = new byte[readRemainingLength(in)];
+                in.readFully(body);
+
+                switch (header >> 4) {
+                    case CONNECT:
+                        clientId = connect(body, out);
+                        break;
+                    case PUBLISH:
+                        publish(clientId, header, body, out);
+                        break;
+                    case SUBSCRIBE:
+                        // nothing is routed, refuse every topic filter
+                        write(out, SUBACK << 4, body[0], body[1], (byte) SUBACK_FAILURE);
+                        break;
+                    case PINGREQ:
+                        write(out, PINGRESP << 4);
+                        break;
+                    case DISCONNECT:
+                        return;
+                    default:
+                        // PUBACK and friends for messages to subscribers, of which there are none
+                        break;
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            LOGGER.debug("Connection of {} closed", clientId);
+        } catch (IOException e) {
+            LOGGER.debug("Connection of {} failed", clientId, e);
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private String connect(final byte[] body, final OutputStream out) throws IOException {
+        final Reader reader = new Reader(body);
+        reader.readString(); // protocol name, "MQTT" or "MQIsdp"
+        reader.readByte(); // protocol level
+        final int flags = reader.readByte();
+        reader.readShort(); // keep alive
+        final String clientId = reader.readString();
+
+        final boolean sessionPresent;
+        if ((flags & CLEAN_SESSION_FLAG) != 0) {
+            sessions.remove(clientId);
+            sessionPresent = false;
+        } else {
+            sessionPresent = !sessions.add(clientId);
+        }
+        if (sessionPresent) {
+            resumedSessions.incrementAndGet();
+        }
+        write(out, CONNACK << 4, (byte) (sessionPresent ? 1 : 0), (byte) CONNACK_ACCEPTED);
+        return clientId;
+    }
+
+    private void publish(final String clientId, final int header, final byte[] body, final OutputStream out)
+            throws IOException {
+        final Reader reader = new Reader(body);
+        final int qos = (header >> 1) & 0x03;
+        final String topic = reader.readString();
+        final int packetId = qos > 0 ? reader.readShort() : 0;
+        final byte[] payload = reader.readRest();
+
+        listener.published(clientId, topic, payload, (header & 0x08) != 0);
+        if (qos > 0) {
+            write(out, PUBACK << 4, (byte) (packetId >> 8), (byte) packetId);
+        }
+    }
+
+    private static int readRemainingLength(final DataInputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int digit;
+        do {
+            digit = in.readUnsignedByte();
+            length |= (digit & 0x7F) << shift;
+            shift += 7;
+        } while ((digit & 0x80) != 0);
+        return length;
+    }
+
+    private static void write(final OutputStream out, final int header, final byte... body) throws IOException {
+        synchronized (out) {
+            out.write(header);
+            out.write(body.length);
+            out.write(body);
+            out.flush();
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.debug("Failed to close", e);
+        }
+    }
+
+    /**
+     * Reads the fields of a packet's variable header and payload.
+     */
+    private static class Reader {
+        private final byte[] data;
+        private int position;
+
+        Reader(final byte[] data) {
+            this.data = data;
+        }
+
+        int readByte() {
+            return data[position++] & 0xFF;
+        }
+
+        int readShort() {
+            return (readByte() << 8) | readByte();
+        }
+
+        String readString() {
+            final int length = readShort();
+            final String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        byte[] readRest() {
+            final byte[] rest = new byte[data.length - position];
+            System.arraycopy(data, position, rest, 0, rest.length);
+            position = data.length;
+            return rest;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package net.pisarenko.pcv.harness;
+
+import net.pisarenko.pcv.app.PcvApp;
+import net.pisarenko.pcv.comm.SyntheticPcv;
+import net.pisarenko.pcv.common.metrics.LatencyHistogram;
+import net.pisarenko.pcv.common.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the whole of {@link PcvApp} against a synthetic PCV and a local broker, once per sample rate, and reports
+ * throughput, end-to-end latency, lost and duplicate messages and how reconnects went while the broker was restarted
+ * every so often. Needs no network and no credentials: the broker and the certificates are made up on the spot.
+ *
+ * Usage: {@code java -jar target/harness.jar [--rates 10,100,1000] [--duration 60] [--restart-every 20]
+ * [--downtime 2000] [--drain 30]}, with the rates in samples per second and the times in seconds, except the broker
+ * downtime in milliseconds. {@code --restart-every 0} leaves the broker alone.
+ */
+public class EndToEndHarness {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EndToEndHarness.class);
+
+    private static final String CLIENT_ID = "pcv-harness";
+    /** Answer time of the synthetic PCV. */
+    private static final long EMULATOR_LATENCY_MICROS = 500;
+    private static final int SYNTHETIC_UNSOLICITED_EVERY = 100;
+    private static final long STOP_TIMEOUT_SECONDS = 5;
+    /** How often to check whether the backlog has reached the broker after the source was unplugged. */
+    private static final long DRAIN_POLL_MILLIS = 100;
+    private static final double[] LATENCY_PERCENTILES = {50, 90, 99, 99.9};
+
+    private int[] rates = {10, 100, 1000};
+    private long durationSeconds = 60;
+    private long restartEverySeconds = 20;
+    private long downtimeMillis = 2000;
+    private long drainSeconds = 30;
+
+    public static void main(String[] args) throws Exception {
+        final EndToEndHarness harness = new EndToEndHarness();
+        try {
+            harness.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: harness [--rates 10,100,1000] [--duration <s>] [--restart-every <s>] "
+                    + "[--downtime <ms>] [--drain <s>]");
+            System.exit(2);
+        }
+        final boolean lossless = harness.run();
+        // the pipelines' threads may linger in MQTT or USB calls
+        System.exit(lossless ? 0 : 1);
+    }
+
+    private void parseArguments(final String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            final String value = args[i + 1];
+            try {
+                switch (args[i]) {
+                    case "--rates":
+                        rates = Stream.of(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                        break;
+                    case "--duration":
+                        durationSeconds = Long.parseLong(value);
+                        break;
+                    case "--restart-every":
+                        restartEverySeconds = Long.parseLong(value);
+                        break;
+                    case "--downtime":
+                        downtimeMillis = Long.parseLong(value);
+                        break;
+                    case "--drain":
+                        drainSeconds = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number for " + args[i] + ": " + value);
+            }
+        }
+    }
+
+    /**
+     * Runs every rate in turn. Returns true if no message was lost and no packet dropped in any of them.
+     */
+    private boolean run() throws IOException, GeneralSecurityException, InterruptedException {
+        final Path workDirectory = Files.createTempDirectory("pcv-harness");
+        try {
+            final TestCertificates certificates = new TestCertificates(workDirectory);
+            final SSLContext serverContext = certificates.createServerContext();
+
+            final List<Result> results = new ArrayList<>();
+            for (int rate : rates) {
+                results.add(runRate(rate, certificates, serverContext,
+                        Files.createDirectory(workDirectory.resolve("rate-" + rate))));
+            }
+
+            System.out.println();
+            System.out.println(Result.HEADER);
+            boolean lossless = true;
+            for (Result result : results) {
+                System.out.println(result);
+                lossless &= result.lost == 0 && result.droppedPackets == 0;
+            }
+            return lossless;
+        } finally {
+            deleteRecursively(workDirectory);
+        }
+    }
+
+    private Result runRate(final int rate, final TestCertificates certificates, final SSLContext serverContext,
+                           final Path dataDirectory) throws IOException, InterruptedException {
+        LOGGER.info("Running at {} samples/s for {} s", rate, durationSeconds);
+        final MessageTally tally = new MessageTally();
+        final EmbeddedBroker broker = new EmbeddedBroker(serverContext, tally);
+        broker.start(0);
+
+        final MetricsRegistry metrics = new MetricsRegistry();
+        final PcvApp app = new PcvApp(broker.getUrl(), CLIENT_ID, certificates.getRootCaPath(),
+                certificates.getCertPath(), certificates.getPrivateKeyPath(), dataDirectory, metrics);
+        app.setPollPeriod(TimeUnit.SECONDS.toNanos(1) / rate, TimeUnit.NANOSECONDS);
+        app.setPreciseTimestamps(true);
+        app.setRecording(false);
+        // only individual values are traced for the latency percentiles
+        app.setPublishRawValues(true);
+
+        final SyntheticPcv synthetic = new SyntheticPcv(EMULATOR_LATENCY_MICROS);
+        synthetic.setUnsolicitedEvery(SYNTHETIC_UNSOLICITED_EVERY);
+        final PluggableSource source = new PluggableSource(synthetic);
+
+        final long startNanos = System.nanoTime();
+        app.startPipeline(source, null);
+        app.prepareTls();
+        final int restarts = injectRestarts(broker, startNanos);
+        source.unplug();
+        final long producingNanos = System.nanoTime() - startNanos;
+
+        final long drainNanos = awaitDrained(tally, metrics);
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        // messages spooled while stopping, e.g. flushed aggregates, are only published on the next start
+        final long expected = expectedMessages(metrics);
+        app.stop(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        broker.stop();
+
+        final Result result = new Result(rate, restarts, producingNanos, drainNanos, elapsedNanos, expected, tally,
+                broker, metrics);
+        LOGGER.info("Done at {} samples/s: {} unique messages, {} lost, {} duplicates, {} packets dropped", rate,
+                tally.getUnique(), result.lost, tally.getDuplicates(), result.droppedPackets);
+        return result;
+    }
+
+    /**
+     * Restarts the broker every {@link #restartEverySeconds} until the duration is over. Returns the number of
+     * restarts.
+     */
+    private int injectRestarts(final EmbeddedBroker broker, final long startNanos)
+            throws IOException, InterruptedException {
+        final long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(restartEverySeconds);
+        int restarts = 0;
+        long nextRestartNanos = intervalNanos > 0 ? startNanos + intervalNanos : Long.MAX_VALUE;
+
+        long now;
+        while ((now = System.nanoTime()) < endNanos) {
+            if (now - nextRestartNanos >= 0) {
+                LOGGER.info("Restarting the broker, down for {} ms", downtimeMillis);
+                broker.restart(downtimeMillis, TimeUnit.MILLISECONDS);
+                restarts++;
+                nextRestartNanos += intervalNanos;
+            } else {
+                TimeUnit.NANOSECONDS.sleep(Math.min(endNanos, nextRestartNanos) - now);
+            }
+        }
+        return restarts;
+    }
+
+    /**
+     * Waits until every message that went into the spool and was not evicted reached the broker, at most for
+     * {@link #drainSeconds}. Returns how long it took.
+     */
+    private long awaitDrained(final MessageTally tally, final MetricsRegistry metrics) throws InterruptedException {
+        final long startNanos = System.nanoTime();
+        final long deadline = startNanos + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (tally.getUnique() < expectedMessages(metrics) && System.nanoTime() - deadline < 0) {
+            TimeUnit.MILLISECONDS.sleep(DRAIN_POLL_MILLIS);
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    private static long expectedMessages(final MetricsRegistry metrics) {
+        return metrics.getValue("pcv_spool_appended_total") - metrics.getValue("pcv_spool_dropped_total");
+    }
+
+    private static void deleteRecursively(final Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * The outcome of one rate, as a row of the report.
+     */
+    private static class Result {
+        private static final String HEADER = String.format(
+                "%8s %9s %9s %9s %7s %7s %7s %7s %7s %7s %9s %9s %7s %8s %8s",
+                "rate", "samples/s", "msgs", "msgs/s", "p50 ms", "p90 ms", "p99 ms", "p999 ms", "lost", "dups",
+                "evicted", "pkt drops", "disconn", "recon ms", "abbrev");
+
+        private final long lost;
+        /** Packets the receiver dropped because decoding fell behind; their messages never reached the spool. */
+        private final long droppedPackets;
+        private final String row;
+
+        Result(final int rate, final int restarts, final long producingNanos, final long drainNanos,
+               final long elapsedNanos, final long expected, final MessageTally tally, final EmbeddedBroker broker,
+               final MetricsRegistry metrics) {
+            this.lost = Math.max(0, expected - tally.getUnique());
+            this.droppedPackets = metrics.getValue("pcv_packet_queue_dropped_total");
+
+            final long samples = histogram(metrics, "pcv_usb_round_trip_seconds").getCount();
+            final long[] latency = histogram(metrics, "pcv_latency_end_to_end_seconds")
+                    .getValuesAtPercentiles(LATENCY_PERCENTILES);
+            final LatencyHistogram reconnects = histogram(metrics, "pcv_mqtt_reconnect_seconds");
+            final long deliveringNanos = producingNanos + drainNanos;
+
+            row = String.format("%8d %9.0f %9d %9.0f %7.1f %7.1f %7.1f %7.1f %7d %7d %9d %9d %7d %8.0f %8d",
+                    rate, samples / seconds(producingNanos), tally.getUnique(),
+                    tally.getUnique() / seconds(deliveringNanos), millis(latency[0]), millis(latency[1]),
+                    millis(latency[2]), millis(latency[3]), lost, tally.getDuplicates(),
+                    metrics.getValue("pcv_spool_dropped_total"), droppedPackets,
+                    metrics.getValue("pcv_mqtt_connections_lost_total"), millis(reconnects.getMax()),
+                    broker.getAbbreviatedHandshakes());
+
+            LOGGER.info("{} samples/s: {} broker restarts, {} connections accepted, {} sessions resumed, "
+                            + "{} abbreviated TLS handshakes, {} publishes, {} live messages, "
+                            + "{} malformed payloads, drained in {} ms, {} ms in total", rate, restarts,
+                    broker.getAcceptedConnections(), broker.getResumedSessions(), broker.getAbbreviatedHandshakes(),
+                    tally.getPublishes(), tally.getLiveMessages(), tally.getMalformed(),
+                    TimeUnit.NANOSECONDS.toMillis(drainNanos), TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        }
+
+        /** Returns the registry's histogram of this name, which the pipeline registered. */
+        private static LatencyHistogram histogram(final MetricsRegistry metrics, final String name) {
+            return metrics.histogram(name, "");
+        }
+
+        private static double seconds(final long nanos) {
+            return nanos / 1e9;
+        }
+
+        private static double millis(final long nanos) {
+            return nanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return row;
+        }
+    }
+}
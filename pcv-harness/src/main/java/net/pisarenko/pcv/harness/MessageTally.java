@@ -0,0 +1,93 @@
+package net.pisarenko.pcv.harness;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the messages that reach the broker. A publish carries one JSON message or an array of them (a batch); each
+ * message is told apart by its type, value and timestamp, so that redelivered ones are counted as duplicates. The
+ * timestamps must be precise for this, whole seconds would make samples collide.
+ *
+ * Messages from the live feed are counted separately, they are conflated and not expected to all arrive.
+ */
+class MessageTally implements EmbeddedBroker.PublishListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageTally.class);
+
+    private static final String LIVE_CLIENT_SUFFIX = "-live";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong publishes = new AtomicLong();
+    private final AtomicLong liveMessages = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+
+    @Override
+    public void published(final String clientId, final String topic, final byte[] payload, final boolean duplicate) {
+        final JsonNode root;
+        try {
+            root = mapper.readTree(payload);
+        } catch (IOException e) {
+            LOGGER.debug("Malformed payload on {}", topic, e);
+            malformed.incrementAndGet();
+            return;
+        }
+
+        if (clientId.endsWith(LIVE_CLIENT_SUFFIX)) {
+            liveMessages.addAndGet(root.isArray() ? root.size() : 1);
+            return;
+        }
+        publishes.incrementAndGet();
+        if (root.isArray()) {
+            for (JsonNode message : root) {
+                count(message);
+            }
+        } else {
+            count(root);
+        }
+    }
+
+    private void count(final JsonNode message) {
+        received.incrementAndGet();
+        // an aggregate's value is an object, which asText() would turn into an empty string
+        final String key = message.path("type").asText() + ' ' + message.path("value").toString() + ' '
+                + message.path("timestamp").asText();
+        if (!seen.add(key)) {
+            duplicates.incrementAndGet();
+        }
+    }
+
+    /** Messages received, each counted once. */
+    long getUnique() {
+        return seen.size();
+    }
+
+    /** Messages received, redeliveries included. */
+    long getReceived() {
+        return received.get();
+    }
+
+    long getDuplicates() {
+        return duplicates.get();
+    }
+
+    long getPublishes() {
+        return publishes.get();
+    }
+
+    long getLiveMessages() {
+        return liveMessages.get();
+    }
+
+    long getMalformed() {
+        return malformed.get();
+    }
+}
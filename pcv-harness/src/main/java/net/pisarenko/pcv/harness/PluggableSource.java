@@ -0,0 +1,47 @@
+package net.pisarenko.pcv.harness;
+
+import net.pisarenko.pcv.comm.PacketLink;
+import net.pisarenko.pcv.comm.PacketSource;
+
+import javax.usb.UsbException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A source that can be unplugged, so that the pipeline stops producing samples and its backlog can be drained before
+ * counting what reached the broker.
+ */
+class PluggableSource implements PacketSource {
+    private final PacketSource source;
+    private volatile boolean plugged = true;
+    private volatile PacketLink link;
+
+    PluggableSource(final PacketSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public synchronized Optional<? extends PacketLink> open() throws UsbException {
+        if (!plugged) {
+            return Optional.empty();
+        }
+        final Optional<? extends PacketLink> opened = source.open();
+        link = opened.orElse(null);
+        return opened;
+    }
+
+    @Override
+    public boolean awaitAvailable(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return source.awaitAvailable(timeout, unit);
+    }
+
+    /**
+     * Disconnects the device; it is not found again.
+     */
+    synchronized void unplug() {
+        plugged = false;
+        if (link != null) {
+            link.close();
+        }
+    }
+}
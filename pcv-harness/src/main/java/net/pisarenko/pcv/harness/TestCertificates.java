@@ -0,0 +1,146 @@
+package net.pisarenko.pcv.harness;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A throwaway certificate authority with a server certificate for localhost and a client certificate, generated on the
+ * fly so that the harness needs no key material checked in. The client side is written as PEM files, the way the
+ * streamer gets its AWS IoT credentials.
+ */
+public class TestCertificates {
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final int KEY_SIZE = 2048;
+    private static final long VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final char[] KEY_PASSWORD = new char[0];
+
+    private static final AtomicLong SERIAL = new AtomicLong(System.currentTimeMillis());
+
+    private final X509Certificate caCert;
+    private final KeyPair serverKey;
+    private final X509Certificate serverCert;
+
+    private final Path rootCaPath;
+    private final Path certPath;
+    private final Path privateKeyPath;
+
+    /**
+     * Generates the certificates and writes the CA certificate and the client's certificate and key to the directory.
+     */
+    public TestCertificates(final Path directory) throws IOException, GeneralSecurityException {
+        try {
+            final KeyPair caKey = generateKeyPair();
+            caCert = sign(new X500Name("CN=PCV Harness CA"), caKey, new X500Name("CN=PCV Harness CA"), caKey, true);
+
+            serverKey = generateKeyPair();
+            serverCert = sign(new X500Name("CN=localhost"), serverKey, new X500Name("CN=PCV Harness CA"), caKey, false);
+
+            final KeyPair clientKey = generateKeyPair();
+            final X509Certificate clientCert =
+                    sign(new X500Name("CN=pcv-harness-client"), clientKey, new X500Name("CN=PCV Harness CA"), caKey,
+                            false);
+
+            Files.createDirectories(directory);
+            rootCaPath = writePem(directory.resolve("root-ca.pem"), caCert);
+            certPath = writePem(directory.resolve("certificate.pem.crt"), clientCert);
+            privateKeyPath = writePem(directory.resolve("private.pem.key"), clientKey);
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    public String getRootCaPath() {
+        return rootCaPath.toString();
+    }
+
+    public String getCertPath() {
+        return certPath.toString();
+    }
+
+    public String getPrivateKeyPath() {
+        return privateKeyPath.toString();
+    }
+
+    /**
+     * Returns a TLS context for the broker that presents the server certificate and accepts clients signed by the CA.
+     */
+    public SSLContext createServerContext() throws GeneralSecurityException, IOException {
+        final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("server", serverKey.getPrivate(), KEY_PASSWORD, new Certificate[]{serverCert, caCert});
+        final KeyManagerFactory keyManagerFactory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEY_PASSWORD);
+
+        final KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("ca", caCert);
+        final TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+
+        final SSLContext context = SSLContext.getInstance("TLSv1.2");
+        context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+
+    private static KeyPair generateKeyPair() throws GeneralSecurityException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(KEY_SIZE);
+        return generator.generateKeyPair();
+    }
+
+    private static X509Certificate sign(final X500Name subject, final KeyPair subjectKey, final X500Name issuer,
+                                        final KeyPair issuerKey, final boolean ca)
+            throws IOException, GeneralSecurityException, OperatorCreationException {
+        final long now = System.currentTimeMillis();
+        final X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer,
+                BigInteger.valueOf(SERIAL.incrementAndGet()), new Date(now - VALIDITY_MILLIS),
+                new Date(now + VALIDITY_MILLIS), subject, subjectKey.getPublic());
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+        if (!ca) {
+            builder.addExtension(Extension.subjectAlternativeName, false, new GeneralNames(new GeneralName[]{
+                    new GeneralName(GeneralName.dNSName, "localhost"),
+                    new GeneralName(GeneralName.iPAddress, "127.0.0.1")}));
+        }
+        final ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(issuerKey.getPrivate());
+        return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+    }
+
+    private static Path writePem(final Path path, final Object object) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII);
+             JcaPEMWriter pemWriter = new JcaPEMWriter(writer)) {
+            pemWriter.writeObject(object);
+        }
+        return path;
+    }
+}
@@ -1,7 +1,18 @@
 package net.pisarenko.pcv.streamer;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import net.pisarenko.pcv.common.NanoClock;
+import net.pisarenko.pcv.common.metrics.Counter;
+import net.pisarenko.pcv.common.metrics.LatencyHistogram;
+import net.pisarenko.pcv.common.metrics.MetricsRegistry;
+import net.pisarenko.pcv.common.queue.AcknowledgingQueue;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -10,10 +21,16 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.time.format.DateTimeFormatter;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.eclipse.paho.client.mqttv3.MqttException.REASON_CODE_CLIENT_NOT_CONNECTED;
+import static org.eclipse.paho.client.mqttv3.MqttException.REASON_CODE_MAX_INFLIGHT;
 
 @SuppressWarnings("squid:S2189")
 public class AmazonMqttStreamer implements Runnable {
@@ -22,18 +39,61 @@ public class AmazonMqttStreamer implements Runnable {
     private static ObjectMapper mapper = new ObjectMapper();
 
     public static final String TIMESTAMP_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+    /** Microsecond timestamps, for sample rates where whole seconds cannot order the samples. */
+    public static final String PRECISE_TIMESTAMP_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSSSS'Z'";
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern(TIMESTAMP_FORMAT);
+    private static final DateTimeFormatter PRECISE_TIMESTAMP_FORMATTER =
+            DateTimeFormatter.ofPattern(PRECISE_TIMESTAMP_FORMAT);
     private static final int CONNECTION_TIMEOUT_SECONDS = 0;
+    /** The client pings the broker when idle for this long, so that a dead link is noticed without a failed publish. */
+    private static final int KEEP_ALIVE_SECONDS = 15;
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 30000;
+    /** Paho 1.0.2 refuses to have more QoS 1 publishes in flight than this. */
+    private static final int MAX_PUBLISH_WINDOW = 10;
+    private static final int QOS_AT_LEAST_ONCE = 1;
+    /** How often to check the connection while waiting for a free slot in the publish window. */
+    private static final long WINDOW_WAIT_MILLIS = 1000;
+    /** How long to wait when the client has not yet freed the slot of an acknowledged publish. */
+    private static final long MAX_INFLIGHT_WAIT_MILLIS = 5;
 
     private String serverUrl;
     private String clientId;
-    private Queue<StreamerMessage> queue;
+    private BlockingQueue<StreamerMessage> queue;
 
     private String rootCaPath;
     private String certPath;
     private String privateKeyPath;
 
+    /** Null when every message is published on its own. */
+    private MessageBatcher batcher;
+    private WireFormat wireFormat = WireFormat.JSON;
+    /** Per-topic overrides of {@link #wireFormat}. */
+    private Map<String, WireFormat> topicWireFormats = new HashMap<>();
+    /** Null when publishing with the blocking client, one message at a time. */
+    private InFlightWindow window;
+    private DateTimeFormatter timestampFormatter = TIMESTAMP_FORMATTER;
+    /** Taken from the queue before connecting; published first. */
+    private StreamerMessage pending;
+    /**
+     * Blocking client: the batch taken from the queue but not sent yet. Kept across restarts of the stage, as a durable
+     * queue does not hand out its messages again before they are acknowledged.
+     */
+    private MessageBatch unsent;
+
+    private LatencyHistogram publishTime = new LatencyHistogram();
+    private Counter publishedMessages = new Counter();
+    private Counter failedPublishes = new Counter();
+    private Counter connectionsLost = new Counter();
+    private LatencyHistogram enqueuedToPublished = new LatencyHistogram();
+    private LatencyHistogram endToEnd = new LatencyHistogram();
+    private LatencyHistogram reconnectTime = new LatencyHistogram();
+
+    /** When the connection was lost, in {@link System#nanoTime()}; 0 while connected or never connected before. */
+    private volatile long connectionLostAt;
+
     public AmazonMqttStreamer(
-            final String serverUrl, final String clientId, final Queue<StreamerMessage> queue,
+            final String serverUrl, final String clientId, final BlockingQueue<StreamerMessage> queue,
             final String rootCaPath, final String certPath, final String privateKeyPath) {
         this.serverUrl = serverUrl;
         this.clientId = clientId;
@@ -44,47 +104,213 @@ public class AmazonMqttStreamer implements Runnable {
         this.privateKeyPath = privateKeyPath;
     }
 
+    /**
+     * Publishes messages in batches instead of one by one. A batch is sent as a JSON array of the individual messages.
+     * Must be called before the streamer is started.
+     */
+    public void setBatchConfig(final BatchConfig batchConfig) {
+        this.batcher = batchConfig == null ? null : new MessageBatcher(batchConfig);
+    }
+
+    /**
+     * Publishes asynchronously with up to this many QoS 1 publishes waiting for the broker's acknowledgement, instead
+     * of waiting for each one before sending the next. At most 10. Must be called before the streamer is started.
+     */
+    public void setPublishWindow(final int size) {
+        this.window = size > 1 ? new InFlightWindow(Math.min(size, MAX_PUBLISH_WINDOW)) : null;
+    }
+
+    /**
+     * Publishes timestamps with microseconds instead of whole seconds (JSON only; binary frames carry milliseconds).
+     */
+    public void setPreciseTimestamps(final boolean preciseTimestamps) {
+        this.timestampFormatter = preciseTimestamps ? PRECISE_TIMESTAMP_FORMATTER : TIMESTAMP_FORMATTER;
+    }
+
+    /**
+     * Reports publish latency (until the broker's acknowledgement), failures and lost connections. Must be called
+     * before the streamer is started.
+     */
+    public void setMetrics(final MetricsRegistry metrics) {
+        publishTime = metrics.histogram("pcv_mqtt_publish_seconds",
+                "Time from handing a publish to the MQTT client to its acknowledgement by the broker");
+        publishedMessages = metrics.counter("pcv_mqtt_published_messages_total",
+                "Messages acknowledged by the broker, batched ones counted individually");
+        failedPublishes = metrics.counter("pcv_mqtt_failed_publishes_total", "Publishes that failed and were retried");
+        connectionsLost = metrics.counter("pcv_mqtt_connections_lost_total", "Times the MQTT connection was lost");
+        reconnectTime = metrics.histogram("pcv_mqtt_reconnect_seconds",
+                "Time from losing the MQTT connection until it was established again");
+        enqueuedToPublished = metrics.histogram("pcv_latency_enqueued_to_published_seconds",
+                "Time a traced message waited in the queue and for its batch before it was published");
+        endToEnd = metrics.histogram("pcv_latency_end_to_end_seconds",
+                "Time from receiving a sample from the PCV until the broker acknowledged its message");
+        metrics.gauge("pcv_mqtt_in_flight_publishes", "Publishes waiting for the broker's acknowledgement",
+                () -> window == null ? 0 : window.size());
+    }
+
+    /**
+     * Keeps one MQTT client for the lifetime of the streamer and reconnects it with a clean session: the streamer sends
+     * again what was not acknowledged, so the client must not do so as well. Reconnecting reuses the TLS context (see
+     * {@link SslUtil}) and thus resumes the TLS session where the broker allows it.
+     *
+     * Nothing is set up before there is something to publish, so that loading the credentials does not compete with
+     * receiving the first samples.
+     */
     public void run() {
-        MqttClient client = null;
-        StreamerMessage streamerMessage;
+        try {
+            if (pending == null) {
+                pending = queue.take();
+            }
+
+            MqttConnectOptions connOpts = new MqttConnectOptions();
+            connOpts.setConnectionTimeout(CONNECTION_TIMEOUT_SECONDS);
+            connOpts.setKeepAliveInterval(KEEP_ALIVE_SECONDS);
+            connOpts.setSocketFactory(SslUtil.getSocketFactory(rootCaPath, certPath, privateKeyPath, ""));
+            connOpts.setCleanSession(true);
+
+            if (window == null) {
+                publishBlocking(connOpts);
+            } else {
+                publishWindowed(connOpts);
+            }
+        } catch (InterruptedException e) {
+            LOGGER.info("MQTT streamer stopped");
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        MqttConnectOptions connOpts = new MqttConnectOptions();
-        connOpts.setConnectionTimeout(CONNECTION_TIMEOUT_SECONDS);
-        connOpts.setSocketFactory(SslUtil.getSocketFactory(rootCaPath, certPath, privateKeyPath, ""));
-        connOpts.setCleanSession(true);
+    private void publishBlocking(final MqttConnectOptions connOpts) throws InterruptedException {
+        final ReconnectBackoff backoff = new ReconnectBackoff(MIN_RECONNECT_DELAY_MILLIS, MAX_RECONNECT_DELAY_MILLIS);
+        MqttClient client = null;
 
         try {
             // main loop
             while (true) {
                 // establish or re-establish connection loop
-                do {
+                while (client == null || !client.isConnected()) {
+                    backoff.await();
                     LOGGER.info("Trying to establish connection to Amazon");
 
                     try {
-                        client = new MqttClient(serverUrl, clientId, new MemoryPersistence());
+                        if (client == null) {
+                            client = new MqttClient(serverUrl, clientId, new MemoryPersistence());
+                            client.setCallback(new ConnectionMonitor());
+                        }
                         client.connect(connOpts);
-                        LOGGER.info("Connection to Amazon established");
+                        connected(backoff);
                     } catch (MqttException e) {
                         LOGGER.debug("Failed to connect", e);
+                        backoff.failed();
                     }
-
-                    Thread.sleep(2000);
-                } while (client == null || !client.isConnected());
+                }
 
                 // send message loop
                 while (true) {
                     try {
-                        if (!queue.isEmpty()) {
-                            streamerMessage = queue.peek();
-                            String messageJson = createJsonString(streamerMessage);
-                            MqttMessage message = new MqttMessage(messageJson.getBytes());
-                            client.publish(streamerMessage.getTopic(), message);
-                            queue.remove();
-                            LOGGER.debug("Sent " + streamerMessage.getTopic() + " " + streamerMessage.getValue() + " " + DateTimeFormatter.ofPattern(TIMESTAMP_FORMAT).format(streamerMessage.getTimestamp()));
+                        if (unsent == null) {
+                            unsent = nextBatch();
+                        }
+                        final MessageBatch batch = unsent;
+                        MqttMessage message = new MqttMessage(createPayload(batch));
+                        final long start = System.nanoTime();
+                        tracePublished(batch);
+                        client.publish(batch.getTopic(), message);
+                        publishTime.recordSince(start);
+                        publishedMessages.add(batch.size());
+                        logSent(batch);
+                        acknowledge(batch);
+                        unsent = null;
+                    } catch (MqttException e) {
+                        failedPublishes.increment();
+                        if (e.getReasonCode() == REASON_CODE_CLIENT_NOT_CONNECTED) {
+                            connectionsLost.increment();
+                            break;
                         } else {
-                            Thread.sleep(50);
+                            LOGGER.debug("Exception occurred when sending a message", e);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (client != null) {
+                try {
+                    if (client.isConnected()) {
+                        client.disconnect();
+                    }
+                    client.close();
+                } catch (MqttException e) {
+                    LOGGER.debug("Failed to disconnect MQTT client", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps up to the window size of publishes in flight. A message counts as delivered, and is acknowledged to the
+     * queue, only when its PUBACK arrives. Whatever is still unacknowledged when the connection drops is sent again
+     * after reconnecting.
+     */
+    private void publishWindowed(final MqttConnectOptions connOpts) throws InterruptedException {
+        final ReconnectBackoff backoff = new ReconnectBackoff(MIN_RECONNECT_DELAY_MILLIS, MAX_RECONNECT_DELAY_MILLIS);
+        final IMqttActionListener deliveryListener = new IMqttActionListener() {
+            @Override
+            public void onSuccess(final IMqttToken token) {
+                final PublishContext context = PublishContext.of(token);
+                final MessageBatch delivered = window.complete(context.id);
+                if (delivered != null) {
+                    publishTime.recordSince(context.sentAt);
+                    publishedMessages.add(delivered.size());
+                    logSent(delivered);
+                    acknowledge(delivered);
+                }
+            }
+
+            @Override
+            public void onFailure(final IMqttToken token, final Throwable e) {
+                LOGGER.debug("Publish failed, will be sent again", e);
+                failedPublishes.increment();
+                window.retry(PublishContext.of(token).id);
+            }
+        };
+        MqttAsyncClient client = null;
+
+        try {
+            while (true) {
+                // establish or re-establish connection loop
+                while (client == null || !client.isConnected()) {
+                    backoff.await();
+                    LOGGER.info("Trying to establish connection to Amazon");
+
+                    try {
+                        if (client == null) {
+                            client = new MqttAsyncClient(serverUrl, clientId, new MemoryPersistence());
+                            client.setCallback(new ConnectionMonitor());
                         }
+                        client.connect(connOpts).waitForCompletion();
+                        connected(backoff);
+                    } catch (MqttException e) {
+                        LOGGER.debug("Failed to connect", e);
+                        backoff.failed();
+                    }
+                }
+
+                // send message loop
+                while (client.isConnected()) {
+                    if (!window.acquire(WINDOW_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        continue;
+                    }
+                    MessageBatch batch = window.pollRetry();
+                    if (batch == null) {
+                        batch = nextBatch();
+                    }
+
+                    final long id = window.register(batch);
+                    tracePublished(batch);
+                    try {
+                        publishAsync(client, batch, id, deliveryListener);
                     } catch (MqttException e) {
+                        window.retry(id);
+                        failedPublishes.increment();
                         if (e.getReasonCode() == REASON_CODE_CLIENT_NOT_CONNECTED) {
                             break;
                         } else {
@@ -92,17 +318,232 @@ public class AmazonMqttStreamer implements Runnable {
                         }
                     }
                 }
+                LOGGER.info("Connection to Amazon lost, " + window.size() + " messages unacknowledged");
+                connectionsLost.increment();
+                window.retryAll();
+            }
+        } finally {
+            // also when stopped: unacknowledged messages stay in the spool and are sent after a restart
+            window.retryAll();
+            if (client != null) {
+                try {
+                    client.disconnectForcibly(0, 0);
+                } catch (MqttException e) {
+                    LOGGER.debug("Failed to disconnect MQTT client", e);
+                }
+                try {
+                    client.close();
+                } catch (MqttException e) {
+                    LOGGER.debug("Failed to close MQTT client", e);
+                }
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
     }
 
-    private static String createJsonString(StreamerMessage streamerMessage) {
+    /**
+     * Hands a publish to the client. When the delivery callback frees a slot of the window, Paho may not have stopped
+     * counting that publish as in flight yet and refuses a new one; that is waited out rather than treated as a
+     * failure.
+     */
+    private void publishAsync(final MqttAsyncClient client, final MessageBatch batch, final long id,
+                              final IMqttActionListener deliveryListener) throws MqttException, InterruptedException {
+        final byte[] payload = createPayload(batch);
+        while (true) {
+            try {
+                client.publish(batch.getTopic(), payload, QOS_AT_LEAST_ONCE, false,
+                        new PublishContext(id, System.nanoTime()), deliveryListener);
+                return;
+            } catch (MqttException e) {
+                if (e.getReasonCode() != REASON_CODE_MAX_INFLIGHT) {
+                    throw e;
+                }
+                TimeUnit.MILLISECONDS.sleep(MAX_INFLIGHT_WAIT_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Sets the payload encoding for all topics that have no encoding of their own.
+     */
+    public void setWireFormat(final WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    /**
+     * Sets the payload encoding for one topic. For mixed batches this is the batch topic.
+     */
+    public void setWireFormat(final String topic, final WireFormat wireFormat) {
+        topicWireFormats.put(topic, wireFormat);
+    }
+
+    /**
+     * Blocks until there is something to publish. Without batching every message is a batch of its own.
+     */
+    private MessageBatch nextBatch() throws InterruptedException {
+        final StreamerMessage first = pending;
+        pending = null;
+        if (batcher == null) {
+            return MessageBatch.of(first != null ? first : queue.take());
+        }
+        if (first != null) {
+            batcher.add(first);
+        }
+
+        MessageBatch batch;
+        while ((batch = batcher.poll()) == null) {
+            final StreamerMessage message = batcher.isEmpty()
+                    ? queue.take()
+                    : queue.poll(batcher.nanosToDeadline(), TimeUnit.NANOSECONDS);
+            if (message != null) {
+                batcher.add(message);
+            }
+        }
+        return batch;
+    }
+
+    private void tracePublished(final MessageBatch batch) {
+        final long now = NanoClock.now();
+        for (StreamerMessage message : batch.getMessages()) {
+            if (message.isTraced()) {
+                enqueuedToPublished.record(now - message.getEnqueuedNanos());
+            }
+        }
+    }
+
+    /**
+     * Lets a durable queue (see {@link MessageSpool}) release messages once they have been published, and reports how
+     * long traced messages took from the PCV to the broker.
+     */
+    @SuppressWarnings("unchecked")
+    private void acknowledge(final MessageBatch batch) {
+        final long now = NanoClock.now();
+        for (StreamerMessage message : batch.getMessages()) {
+            if (message.isTraced()) {
+                endToEnd.record(now - NanoClock.toEpochNanos(message.getTimestamp()));
+            }
+        }
+
+        if (queue instanceof AcknowledgingQueue) {
+            final AcknowledgingQueue<StreamerMessage> acknowledgingQueue = (AcknowledgingQueue<StreamerMessage>) queue;
+            for (StreamerMessage message : batch.getMessages()) {
+                acknowledgingQueue.acknowledge(message);
+            }
+        }
+    }
+
+    private byte[] createPayload(final MessageBatch batch) {
+        if (topicWireFormats.getOrDefault(batch.getTopic(), wireFormat) == WireFormat.BINARY
+                && !hasJsonValues(batch)) {
+            final byte[] frame = BinaryFrameEncoder.encode(batch.getMessages());
+            if (frame != null) {
+                return frame;
+            }
+            LOGGER.debug("Non-integer value on " + batch.getTopic() + ", falling back to JSON");
+        }
+
+        if (batcher == null) {
+            return createJsonNode(batch.getMessages().get(0), timestampFormatter).toString().getBytes();
+        }
+        return createJsonArrayString(batch.getMessages(), timestampFormatter).getBytes();
+    }
+
+    private static boolean hasJsonValues(final MessageBatch batch) {
+        for (StreamerMessage message : batch.getMessages()) {
+            if (message.isJsonValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void logSent(final MessageBatch batch) {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+        if (batch.size() == 1) {
+            final StreamerMessage streamerMessage = batch.getMessages().get(0);
+            LOGGER.debug("Sent " + streamerMessage.getTopic() + " " + streamerMessage.getValue() + " " + TIMESTAMP_FORMATTER.format(streamerMessage.getTimestamp()));
+        } else {
+            LOGGER.debug("Sent " + batch.size() + " messages to " + batch.getTopic());
+        }
+    }
+
+    public static String createJsonString(StreamerMessage streamerMessage) {
+        return createJsonNode(streamerMessage, TIMESTAMP_FORMATTER).toString();
+    }
+
+    private static String createJsonArrayString(List<StreamerMessage> streamerMessages, DateTimeFormatter formatter) {
+        final ArrayNode array = mapper.createArrayNode();
+        for (StreamerMessage streamerMessage : streamerMessages) {
+            array.add(createJsonNode(streamerMessage, formatter));
+        }
+        return array.toString();
+    }
+
+    private static ObjectNode createJsonNode(StreamerMessage streamerMessage, DateTimeFormatter formatter) {
         final ObjectNode node = mapper.createObjectNode();
         node.put("type", streamerMessage.getTopic());
-        node.put("value", streamerMessage.getValue());
-        node.put("timestamp", DateTimeFormatter.ofPattern(TIMESTAMP_FORMAT).format(streamerMessage.getTimestamp()));
-        return node.toString();
+        if (streamerMessage.isJsonValue()) {
+            try {
+                node.set("value", mapper.readTree(streamerMessage.getValue()));
+            } catch (IOException e) {
+                LOGGER.warn("Malformed JSON value on " + streamerMessage.getTopic() + ", sending it as a string", e);
+                node.put("value", streamerMessage.getValue());
+            }
+        } else {
+            node.put("value", streamerMessage.getValue());
+        }
+        node.put("timestamp", formatter.format(streamerMessage.getTimestamp()));
+        return node;
+    }
+
+    private void connected(final ReconnectBackoff backoff) {
+        backoff.succeeded();
+        final long lostAt = connectionLostAt;
+        if (lostAt != 0) {
+            reconnectTime.recordSince(lostAt);
+            connectionLostAt = 0;
+        }
+        LOGGER.info("Connection to Amazon established");
+    }
+
+    /**
+     * Notices a lost connection as soon as the client does, e.g. because the broker stopped answering pings, rather
+     * than at the next publish.
+     */
+    private class ConnectionMonitor implements MqttCallback {
+        @Override
+        public void connectionLost(final Throwable cause) {
+            connectionLostAt = System.nanoTime();
+            LOGGER.info("Connection to Amazon lost: {}", cause == null ? "unknown cause" : cause.getMessage());
+        }
+
+        @Override
+        public void messageArrived(final String topic, final MqttMessage message) {
+            // nothing is subscribed
+        }
+
+        @Override
+        public void deliveryComplete(final IMqttDeliveryToken token) {
+            // windowed publishes are tracked through their action listener, blocking ones return when delivered
+        }
+    }
+
+    /**
+     * Identifies a windowed publish in its delivery callback.
+     */
+    private static class PublishContext {
+        private final long id;
+        private final long sentAt;
+
+        PublishContext(final long id, final long sentAt) {
+            this.id = id;
+            this.sentAt = sentAt;
+        }
+
+        @SuppressWarnings("cast")
+        static PublishContext of(final IMqttToken token) {
+            return (PublishContext) token.getUserContext();
+        }
     }
 }
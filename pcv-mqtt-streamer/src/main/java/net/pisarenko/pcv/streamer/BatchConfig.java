@@ -0,0 +1,51 @@
+package net.pisarenko.pcv.streamer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Limits for batched publishing. A batch is published as soon as any of the limits is reached: the message count, the
+ * (estimated) payload size or the linger time since the first message was added to it. The linger time is the latency
+ * ceiling a message pays for batching.
+ */
+public class BatchConfig {
+    private final BatchMode mode;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long maxLingerMillis;
+    /** Topic for {@link BatchMode#MIXED} batches. */
+    private final String mixedTopic;
+
+    public BatchConfig(
+            final BatchMode mode, final int maxMessages, final int maxBytes, final long maxLingerMillis,
+            final String mixedTopic) {
+        checkArgument(maxMessages > 0, "maxMessages must be positive");
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        checkArgument(maxLingerMillis >= 0, "maxLingerMillis must not be negative");
+        this.mode = checkNotNull(mode);
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxLingerMillis = maxLingerMillis;
+        this.mixedTopic = mode == BatchMode.MIXED ? checkNotNull(mixedTopic) : mixedTopic;
+    }
+
+    public BatchMode getMode() {
+        return mode;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxLingerMillis() {
+        return maxLingerMillis;
+    }
+
+    public String getMixedTopic() {
+        return mixedTopic;
+    }
+}
@@ -0,0 +1,11 @@
+package net.pisarenko.pcv.streamer;
+
+/**
+ * How messages are grouped into one MQTT payload.
+ */
+public enum BatchMode {
+    /** One batch per topic, published on that topic. */
+    PER_TOPIC,
+    /** Messages of all topics share a batch, published on a dedicated topic. */
+    MIXED
+}
@@ -0,0 +1,75 @@
+package net.pisarenko.pcv.streamer;
+
+import com.google.common.collect.Maps;
+import net.pisarenko.pcv.telemetry.TelemetryFormat;
+import net.pisarenko.pcv.telemetry.Varint;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes messages into a binary telemetry frame (layout in {@link TelemetryFormat}). Only integer values can be
+ * encoded; the timestamp resolution is one millisecond.
+ */
+public class BinaryFrameEncoder {
+    private BinaryFrameEncoder() {}
+
+    /**
+     * Returns the frame, or null if a value is not an integer and the messages have to be sent some other way.
+     */
+    public static byte[] encode(final List<StreamerMessage> messages) {
+        final long[] values = new long[messages.size()];
+        final long[] timestamps = new long[messages.size()];
+        final int[] channelIds = new int[messages.size()];
+        final Map<String, Integer> channels = Maps.newLinkedHashMap();
+
+        for (int i = 0; i < messages.size(); i++) {
+            final StreamerMessage message = messages.get(i);
+            try {
+                values[i] = Long.parseLong(message.getValue());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            timestamps[i] = message.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli();
+
+            Integer id = channels.get(message.getTopic());
+            if (id == null) {
+                id = channels.size();
+                channels.put(message.getTopic(), id);
+            }
+            channelIds[i] = id;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 8 * messages.size());
+        out.write(TelemetryFormat.MAGIC_0);
+        out.write(TelemetryFormat.MAGIC_1);
+        out.write(TelemetryFormat.VERSION);
+
+        Varint.writeUnsigned(out, channels.size());
+        for (String channel : channels.keySet()) {
+            final byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+            Varint.writeUnsigned(out, name.length);
+            out.write(name, 0, name.length);
+        }
+
+        final long baseTimestamp = messages.isEmpty() ? 0 : timestamps[0];
+        Varint.writeUnsigned(out, baseTimestamp);
+        Varint.writeUnsigned(out, messages.size());
+
+        final long[] lastValues = new long[channels.size()];
+        long lastTimestamp = baseTimestamp;
+        for (int i = 0; i < messages.size(); i++) {
+            final int id = channelIds[i];
+            Varint.writeUnsigned(out, id);
+            Varint.writeSigned(out, values[i] - lastValues[id]);
+            Varint.writeSigned(out, timestamps[i] - lastTimestamp);
+            lastValues[id] = values[i];
+            lastTimestamp = timestamps[i];
+        }
+
+        return out.toByteArray();
+    }
+}
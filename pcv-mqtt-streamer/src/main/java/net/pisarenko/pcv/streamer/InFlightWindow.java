@@ -0,0 +1,90 @@
+package net.pisarenko.pcv.streamer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes that were handed to the MQTT client and are waiting for the broker's PUBACK.
+ *
+ * Bounds how many publishes may be outstanding and keeps them until they are acknowledged, so that after a dropped
+ * connection exactly the unacknowledged ones are sent again, oldest first.
+ */
+class InFlightWindow {
+    private final Semaphore slots;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Outstanding publishes by sequence number, i.e. in the order they were sent. */
+    private final ConcurrentNavigableMap<Long, MessageBatch> inFlight = new ConcurrentSkipListMap<>();
+    /** Publishes that have to be sent again, by their original sequence number. */
+    private final ConcurrentNavigableMap<Long, MessageBatch> retries = new ConcurrentSkipListMap<>();
+
+    InFlightWindow(final int size) {
+        this.slots = new Semaphore(size);
+    }
+
+    /**
+     * Waits for a free slot. Returns false if none became free within the timeout.
+     */
+    boolean acquire(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return slots.tryAcquire(timeout, unit);
+    }
+
+    /**
+     * Records a publish that is about to be sent in a slot acquired before. The returned ID identifies it in the
+     * delivery callback.
+     */
+    long register(final MessageBatch batch) {
+        final long id = sequence.incrementAndGet();
+        inFlight.put(id, batch);
+        return id;
+    }
+
+    /**
+     * Handles the PUBACK of a publish. Returns the batch, or null if it was acknowledged already.
+     */
+    MessageBatch complete(final long id) {
+        final MessageBatch batch = inFlight.remove(id);
+        if (batch != null) {
+            slots.release();
+            return batch;
+        }
+        // acknowledged after the connection was given up on, no need to send it again
+        return retries.remove(id);
+    }
+
+    /**
+     * Frees the slot of a publish that failed and queues it to be sent again.
+     */
+    void retry(final long id) {
+        final MessageBatch batch = inFlight.remove(id);
+        if (batch != null) {
+            retries.put(id, batch);
+            slots.release();
+        }
+    }
+
+    /**
+     * Gives up on everything outstanding, e.g. because the connection was lost.
+     */
+    void retryAll() {
+        for (Long id : inFlight.keySet()) {
+            retry(id);
+        }
+    }
+
+    /**
+     * Returns the oldest publish to send again, if any.
+     */
+    MessageBatch pollRetry() {
+        final Map.Entry<Long, MessageBatch> entry = retries.pollFirstEntry();
+        return entry == null ? null : entry.getValue();
+    }
+
+    int size() {
+        return inFlight.size();
+    }
+}
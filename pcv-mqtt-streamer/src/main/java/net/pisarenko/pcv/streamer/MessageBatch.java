@@ -0,0 +1,53 @@
+package net.pisarenko.pcv.streamer;
+
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Messages that are published together as one MQTT payload.
+ */
+public class MessageBatch {
+    private final String topic;
+    private final List<StreamerMessage> messages = Lists.newArrayList();
+    /** When the batch must be published at the latest, in {@link System#nanoTime()} terms. */
+    private final long deadlineNanos;
+    private int estimatedBytes;
+
+    MessageBatch(final String topic, final long deadlineNanos) {
+        this.topic = topic;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public static MessageBatch of(final StreamerMessage message) {
+        final MessageBatch batch = new MessageBatch(message.getTopic(), System.nanoTime());
+        batch.add(message, 0);
+        return batch;
+    }
+
+    void add(final StreamerMessage message, final int bytes) {
+        messages.add(message);
+        estimatedBytes += bytes;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public List<StreamerMessage> getMessages() {
+        return Collections.unmodifiableList(messages);
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    int getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+}
@@ -0,0 +1,96 @@
+package net.pisarenko.pcv.streamer;
+
+import com.google.common.collect.Maps;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects messages into batches according to a {@link BatchConfig}. Not thread safe, meant to be driven by the
+ * publishing thread: {@link #add} messages as they arrive, {@link #poll} for batches that are due and wait at most
+ * {@link #nanosToDeadline()} for more messages in between.
+ */
+public class MessageBatcher {
+    /** Size of the JSON fields that surround the topic, value and timestamp, plus the separating comma. */
+    private static final int JSON_OVERHEAD_BYTES = 38;
+    private static final int TIMESTAMP_BYTES = 20;
+
+    private final BatchConfig config;
+    private final long lingerNanos;
+    /** Batches still accepting messages, by topic (a single entry in mixed mode). */
+    private final Map<String, MessageBatch> open = Maps.newLinkedHashMap();
+    /** Batches that reached a limit, in the order they did. */
+    private final Deque<MessageBatch> ready = new ArrayDeque<>();
+
+    public MessageBatcher(final BatchConfig config) {
+        this.config = config;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxLingerMillis());
+    }
+
+    public void add(final StreamerMessage message) {
+        final String topic = config.getMode() == BatchMode.MIXED ? config.getMixedTopic() : message.getTopic();
+        final int bytes = estimateSize(message);
+
+        MessageBatch batch = open.get(topic);
+        if (batch != null && batch.getEstimatedBytes() + bytes > config.getMaxBytes()) {
+            ready.add(open.remove(topic));
+            batch = null;
+        }
+        if (batch == null) {
+            batch = new MessageBatch(topic, System.nanoTime() + lingerNanos);
+            open.put(topic, batch);
+        }
+
+        batch.add(message, bytes);
+        if (batch.size() >= config.getMaxMessages() || batch.getEstimatedBytes() >= config.getMaxBytes()) {
+            ready.add(open.remove(topic));
+        }
+    }
+
+    /**
+     * Returns the next batch that is full or past its linger deadline, or null if none is.
+     */
+    public MessageBatch poll() {
+        if (ready.isEmpty() && !open.isEmpty()) {
+            final long now = System.nanoTime();
+            final Iterator<MessageBatch> it = open.values().iterator();
+            while (it.hasNext()) {
+                final MessageBatch batch = it.next();
+                if (now - batch.getDeadlineNanos() >= 0) {
+                    ready.add(batch);
+                    it.remove();
+                }
+            }
+        }
+        return ready.poll();
+    }
+
+    /**
+     * Returns true if no messages are waiting to be published.
+     */
+    public boolean isEmpty() {
+        return open.isEmpty() && ready.isEmpty();
+    }
+
+    /**
+     * Returns how long until the earliest open batch is due, 0 if one already is.
+     */
+    public long nanosToDeadline() {
+        if (!ready.isEmpty()) {
+            return 0;
+        }
+        long earliest = Long.MAX_VALUE;
+        final long now = System.nanoTime();
+        for (MessageBatch batch : open.values()) {
+            earliest = Math.min(earliest, Math.max(0, batch.getDeadlineNanos() - now));
+        }
+        return earliest;
+    }
+
+    private static int estimateSize(final StreamerMessage message) {
+        return JSON_OVERHEAD_BYTES + message.getTopic().length() + message.getValue().length() + TIMESTAMP_BYTES;
+    }
+}
@@ -0,0 +1,572 @@
+package net.pisarenko.pcv.streamer;
+
+import com.google.common.collect.Lists;
+import net.pisarenko.pcv.common.queue.AcknowledgingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Store-and-forward buffer for messages that could not be published yet, e.g. while riding through a tunnel.
+ *
+ * Messages are appended to fixed size memory-mapped segment files in a directory. Every byte ever written has a
+ * logical offset; segment N holds offsets [N * segmentBytes, (N + 1) * segmentBytes) and is named after N. A record is
+ * a 4 byte length followed by the message; the length is written last so a half written record is never seen. A zero
+ * length means the rest of the segment is unused. The enqueue stamp of traced messages is appended to the record; older
+ * records without it read as untraced. The top bit of the nanosecond field marks a JSON document value.
+ *
+ * Taking a message does not remove it from disk. Only when it (and everything taken before it) is
+ * {@link #acknowledge acknowledged} does the committed offset move past it. The committed offset is kept in a mapped
+ * file as well, so after a restart publishing resumes with the first unacknowledged message. Fully committed segments
+ * are deleted.
+ *
+ * The spool is bounded in bytes. When it is full the oldest segment is dropped, unsent or not.
+ *
+ * Writes go to the page cache first, which is lost when the ignition cuts the power. Segments are therefore forced to
+ * disk when a new one is started, every {@link #SYNC_EVERY_RECORDS} records and at least every
+ * {@link #SYNC_INTERVAL_MILLIS}, the committed offset right after them. An idle consumer waiting in {@link #take()}
+ * does the timed sync.
+ */
+public class MessageSpool extends AbstractQueue<StreamerMessage> implements AcknowledgingQueue<StreamerMessage> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageSpool.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String OFFSET_FILE_NAME = "consumer.offset";
+    private static final int LENGTH_BYTES = 4;
+    /** Set in the nanosecond field, which never needs more than 30 bits, for a JSON document value. */
+    private static final int JSON_VALUE_FLAG = 1 << 31;
+    /** Longest time that appended records or a moved committed offset may stay in the page cache only. */
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+    private static final int SYNC_EVERY_RECORDS = 100;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Mapped segment files by segment number. */
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private final MappedByteBuffer offsetFile;
+
+    /** Where the next record will be appended. */
+    private long writeOffset;
+    /** Where the next record will be taken from. */
+    private long readOffset;
+    /** Everything before this offset has been delivered. */
+    private long committedOffset;
+    /** Records between the read and write offsets. */
+    private int unread;
+    /** Records taken but not committed yet, oldest first. */
+    private final Deque<TakenRecord> taken = new ArrayDeque<>();
+    /** Records lost because the spool was full. */
+    private long dropped;
+    /** Messages appended since this spool was opened. */
+    private long appended;
+
+    /** Everything before this offset has been forced to disk. */
+    private long syncedOffset;
+    /** Records appended since the last sync. */
+    private int unsyncedRecords;
+    /** The committed offset changed since the last sync. */
+    private boolean offsetUnsynced;
+    private long lastSyncNanos = System.nanoTime();
+
+    public MessageSpool(final Path directory, final long maxBytes, final int segmentBytes) throws IOException {
+        checkArgument(segmentBytes > LENGTH_BYTES, "segment too small");
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+
+        Files.createDirectories(directory);
+        this.offsetFile = map(directory.resolve(OFFSET_FILE_NAME), Long.BYTES);
+        recover();
+    }
+
+    @Override
+    public boolean offer(final StreamerMessage message) {
+        checkNotNull(message);
+        final byte[] topic = message.getTopic().getBytes(StandardCharsets.UTF_8);
+        final byte[] value = message.getValue().getBytes(StandardCharsets.UTF_8);
+        final int length = 2 + topic.length + 2 + value.length + Long.BYTES + Integer.BYTES
+                + (message.isTraced() ? Long.BYTES : 0);
+        if (LENGTH_BYTES + length > segmentBytes) {
+            LOGGER.warn("Message on " + message.getTopic() + " does not fit a spool segment, dropping it");
+            return false;
+        }
+
+        lock.lock();
+        try {
+            if (position(writeOffset) + LENGTH_BYTES + length > segmentBytes) {
+                sync();
+                writeOffset = (segmentNumber(writeOffset) + 1) * segmentBytes;
+                syncedOffset = writeOffset;
+            }
+            final MappedByteBuffer segment = writableSegment(segmentNumber(writeOffset));
+            final int position = position(writeOffset);
+
+            final ByteBuffer record = segment.duplicate();
+            record.position(position + LENGTH_BYTES);
+            record.putShort((short) topic.length).put(topic);
+            record.putShort((short) value.length).put(value);
+            record.putLong(message.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+            record.putInt(message.getTimestamp().getNano() | (message.isJsonValue() ? JSON_VALUE_FLAG : 0));
+            if (message.isTraced()) {
+                record.putLong(message.getEnqueuedNanos());
+            }
+            segment.putInt(position, length);
+
+            writeOffset += LENGTH_BYTES + length;
+            unread++;
+            appended++;
+            unsyncedRecords++;
+            syncIfDue();
+            notEmpty.signal();
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to append to spool, dropping message", e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(final StreamerMessage message) {
+        offer(message);
+    }
+
+    @Override
+    public boolean offer(final StreamerMessage message, final long timeout, final TimeUnit unit) {
+        return offer(message);
+    }
+
+    @Override
+    public StreamerMessage poll() {
+        lock.lock();
+        try {
+            return unread == 0 ? null : takeRecord();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StreamerMessage take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (unread == 0) {
+                if (isUnsynced()) {
+                    notEmpty.awaitNanos(nanosToSync());
+                    syncIfDue();
+                } else {
+                    notEmpty.await();
+                }
+            }
+            return takeRecord();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StreamerMessage poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (unread == 0) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return takeRecord();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StreamerMessage peek() {
+        lock.lock();
+        try {
+            if (unread == 0) {
+                return null;
+            }
+            final long offset = skipUnused(readOffset);
+            return readRecord(offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void acknowledge(final StreamerMessage message) {
+        lock.lock();
+        try {
+            for (TakenRecord record : taken) {
+                if (record.message == message) {
+                    record.acknowledged = true;
+                    break;
+                }
+            }
+
+            long commitTo = committedOffset;
+            while (!taken.isEmpty() && taken.peekFirst().acknowledged) {
+                commitTo = Math.max(commitTo, taken.pollFirst().endOffset);
+            }
+            if (commitTo > committedOffset) {
+                commit(commitTo);
+                syncIfDue();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return unread;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The spool is bounded in bytes rather than in messages and makes room by dropping old data.
+     */
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super StreamerMessage> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super StreamerMessage> collection, final int maxElements) {
+        checkArgument(collection != this, "cannot drain to self");
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && unread > 0) {
+                collection.add(takeRecord());
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the messages that have not been taken yet. Removal is not supported.
+     */
+    @Override
+    public Iterator<StreamerMessage> iterator() {
+        lock.lock();
+        try {
+            final List<StreamerMessage> snapshot = Lists.newArrayListWithCapacity(unread);
+            long offset = readOffset;
+            for (int i = 0; i < unread; i++) {
+                offset = skipUnused(offset);
+                snapshot.add(readRecord(offset));
+                offset += LENGTH_BYTES + recordLength(offset);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many messages were dropped because the spool ran out of space.
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many messages were appended since the spool was opened, not counting recovered ones.
+     */
+    public long getAppendedCount() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the disk space taken by unsent and unacknowledged messages.
+     */
+    public long getBacklogBytes() {
+        lock.lock();
+        try {
+            return writeOffset - committedOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces appended records and then the committed offset to disk, e.g. before shutting down.
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            if (writeOffset > syncedOffset) {
+                for (MappedByteBuffer segment : segments
+                        .subMap(segmentNumber(syncedOffset), true, segmentNumber(writeOffset), true).values()) {
+                    segment.force();
+                }
+            }
+            if (offsetUnsynced) {
+                offsetFile.force();
+            }
+            syncedOffset = writeOffset;
+            unsyncedRecords = 0;
+            offsetUnsynced = false;
+            lastSyncNanos = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncIfDue() {
+        if (unsyncedRecords >= SYNC_EVERY_RECORDS || (isUnsynced() && nanosToSync() <= 0)) {
+            sync();
+        }
+    }
+
+    private boolean isUnsynced() {
+        return writeOffset > syncedOffset || offsetUnsynced;
+    }
+
+    private long nanosToSync() {
+        return lastSyncNanos + TimeUnit.MILLISECONDS.toNanos(SYNC_INTERVAL_MILLIS) - System.nanoTime();
+    }
+
+    private StreamerMessage takeRecord() {
+        readOffset = skipUnused(readOffset);
+        final StreamerMessage message = readRecord(readOffset);
+        readOffset += LENGTH_BYTES + recordLength(readOffset);
+        unread--;
+        taken.add(new TakenRecord(message, readOffset));
+        return message;
+    }
+
+    /**
+     * Moves past the unused end of a segment, if the offset points there.
+     */
+    private long skipUnused(long offset) {
+        while (offset < writeOffset) {
+            if (position(offset) + LENGTH_BYTES <= segmentBytes && recordLength(offset) > 0) {
+                return offset;
+            }
+            offset = (segmentNumber(offset) + 1) * segmentBytes;
+        }
+        return offset;
+    }
+
+    private int recordLength(final long offset) {
+        return segments.get(segmentNumber(offset)).getInt(position(offset));
+    }
+
+    private StreamerMessage readRecord(final long offset) {
+        final ByteBuffer record = segments.get(segmentNumber(offset)).duplicate();
+        final int start = position(offset) + LENGTH_BYTES;
+        record.position(start);
+        final String topic = readString(record);
+        final String value = readString(record);
+        final long epochSecond = record.getLong();
+        final int nanoAndFlags = record.getInt();
+        final long enqueuedNanos = record.position() - start < recordLength(offset) ? record.getLong() : 0;
+        return new StreamerMessage(
+                topic, value, LocalDateTime.ofEpochSecond(epochSecond, nanoAndFlags & ~JSON_VALUE_FLAG, ZoneOffset.UTC),
+                enqueuedNanos, (nanoAndFlags & JSON_VALUE_FLAG) != 0);
+    }
+
+    private static String readString(final ByteBuffer record) {
+        final byte[] bytes = new byte[record.getShort() & 0xFFFF];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void commit(final long offset) {
+        committedOffset = offset;
+        offsetFile.putLong(0, offset);
+        offsetUnsynced = true;
+
+        final long firstNeeded = segmentNumber(offset);
+        while (!segments.isEmpty() && segments.firstKey() < firstNeeded) {
+            deleteSegment(segments.firstKey());
+        }
+    }
+
+    private MappedByteBuffer writableSegment(final long number) throws IOException {
+        MappedByteBuffer segment = segments.get(number);
+        if (segment != null) {
+            return segment;
+        }
+        while (segments.size() >= maxSegments) {
+            dropOldestSegment();
+        }
+        segment = map(segmentPath(number), segmentBytes);
+        segments.put(number, segment);
+        return segment;
+    }
+
+    /**
+     * Makes room by throwing away the oldest segment, including whatever in it has not been sent yet.
+     */
+    private void dropOldestSegment() {
+        final long number = segments.firstKey();
+        final long nextSegmentStart = (number + 1) * segmentBytes;
+
+        long offset = skipUnused(readOffset);
+        int lost = 0;
+        while (offset < nextSegmentStart && offset < writeOffset) {
+            offset += LENGTH_BYTES + recordLength(offset);
+            offset = skipUnused(offset);
+            lost++;
+        }
+        if (lost > 0) {
+            LOGGER.warn("Spool full, dropped " + lost + " unsent messages");
+        }
+
+        dropped += lost;
+        unread -= lost;
+        readOffset = Math.max(readOffset, nextSegmentStart);
+        if (committedOffset < nextSegmentStart) {
+            committedOffset = nextSegmentStart;
+            offsetFile.putLong(0, committedOffset);
+            offsetUnsynced = true;
+        }
+        taken.removeIf(record -> record.endOffset <= nextSegmentStart);
+        deleteSegment(number);
+    }
+
+    private void deleteSegment(final long number) {
+        segments.remove(number);
+        try {
+            Files.deleteIfExists(segmentPath(number));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete spool segment " + number, e);
+        }
+    }
+
+    /**
+     * Maps the existing segments and restores the offsets from the last run.
+     */
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                final long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(number, map(file, segmentBytes));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected file in spool directory " + directory, e);
+        }
+
+        if (segments.isEmpty()) {
+            committedOffset = offsetFile.getLong(0);
+            writeOffset = committedOffset;
+            readOffset = committedOffset;
+            syncedOffset = writeOffset;
+            return;
+        }
+
+        // the last segment ends where the first zero length is found
+        final long last = segments.lastKey();
+        final MappedByteBuffer lastSegment = segments.get(last);
+        int position = 0;
+        int length;
+        while (position + LENGTH_BYTES <= segmentBytes && (length = lastSegment.getInt(position)) > 0) {
+            position += LENGTH_BYTES + length;
+        }
+        writeOffset = last * segmentBytes + position;
+        syncedOffset = writeOffset;
+
+        final long firstOffset = segments.firstKey() * segmentBytes;
+        committedOffset = Math.min(Math.max(offsetFile.getLong(0), firstOffset), writeOffset);
+        readOffset = committedOffset;
+        commit(committedOffset);
+
+        for (long offset = skipUnused(readOffset); offset < writeOffset; offset = skipUnused(offset)) {
+            offset += LENGTH_BYTES + recordLength(offset);
+            unread++;
+        }
+        if (unread > 0) {
+            LOGGER.info("Recovered " + unread + " unsent messages from the spool");
+        }
+    }
+
+    private Path segmentPath(final long number) {
+        return directory.resolve(String.format("%020d%s", number, SEGMENT_SUFFIX));
+    }
+
+    private long segmentNumber(final long offset) {
+        return offset / segmentBytes;
+    }
+
+    private int position(final long offset) {
+        return (int) (offset % segmentBytes);
+    }
+
+    private static MappedByteBuffer map(final Path file, final int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static class TakenRecord {
+        private final StreamerMessage message;
+        /** Offset right after the record, i.e. what becomes committed once it is acknowledged. */
+        private final long endOffset;
+        private boolean acknowledged;
+
+        TakenRecord(final StreamerMessage message, final long endOffset) {
+            this.message = message;
+            this.endOffset = endOffset;
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package net.pisarenko.pcv.streamer;
 
-import com.google.common.collect.EvictingQueue;
-import com.google.common.collect.Queues;
+import net.pisarenko.pcv.common.concurrent.Supervisor;
+import net.pisarenko.pcv.common.queue.BlockingWaitStrategy;
+import net.pisarenko.pcv.common.queue.OverflowPolicy;
+import net.pisarenko.pcv.common.queue.RingBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.Clock;
 import java.time.LocalDateTime;
 import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class PcvStreamerApplication {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PcvStreamerApplication.class);
+
     /** Path to the Amazon root CA. */
     private static String ROOT_CA_PATH = "rootCA.crt";
     /** Path to the certificate (generated during setup). */
@@ -19,10 +27,15 @@ public class PcvStreamerApplication {
     private static String CLIENT_ID = "KTMDuke390";
 
     public static void main(String[] args) throws Exception {
-        Queue<StreamerMessage> queue = Queues.synchronizedQueue(EvictingQueue.<StreamerMessage>create(1000));
-
-        new Thread(new AmazonMqttStreamer(SERVER_URL, CLIENT_ID, queue, ROOT_CA_PATH, CERT_PATH, PRIVATE_KEY_PATH)).start();
-        new Thread(new ValueGenerator(queue)).start();
+        BlockingQueue<StreamerMessage> queue =
+                new RingBuffer<>(1000, OverflowPolicy.DROP_OLDEST, new BlockingWaitStrategy());
+
+        Supervisor supervisor = new Supervisor(true);
+        supervisor.supervise("generator", new ValueGenerator(queue));
+        supervisor.supervise("streamer",
+                new AmazonMqttStreamer(SERVER_URL, CLIENT_ID, queue, ROOT_CA_PATH, CERT_PATH, PRIVATE_KEY_PATH), queue);
+        supervisor.shutdownOnExit(10, TimeUnit.SECONDS);
+        supervisor.awaitTermination();
     }
 
     @SuppressWarnings("squid:S2189")
@@ -37,11 +50,12 @@ public class PcvStreamerApplication {
         public void run() {
             try {
                 while (true) {
-                    queue.add(new StreamerMessage("RPM", "" + random.nextInt(100), LocalDateTime.now(Clock.systemUTC())));
+                    queue.offer(new StreamerMessage("RPM", "" + random.nextInt(100), LocalDateTime.now(Clock.systemUTC())));
                     Thread.sleep(3000);
                 }
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                LOGGER.info("Value generator stopped");
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -0,0 +1,47 @@
+package net.pisarenko.pcv.streamer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delays between connection attempts: none before the first attempt after a lost connection, then growing
+ * exponentially up to a cap. Each delay is randomized between half and all of its nominal value, so that clients that
+ * lost the connection together (e.g. several pipelines on one cellular link) do not reconnect in lockstep.
+ */
+class ReconnectBackoff {
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private int failures;
+
+    ReconnectBackoff(final long minDelayMillis, final long maxDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Waits before the next connection attempt, if the previous one failed.
+     */
+    void await() throws InterruptedException {
+        final long delay = nextDelayMillis();
+        if (delay > 0) {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        }
+    }
+
+    long nextDelayMillis() {
+        if (failures == 0) {
+            return 0;
+        }
+        final long nominal = failures > 30 ? maxDelayMillis
+                : Math.min(maxDelayMillis, minDelayMillis << (failures - 1));
+        return nominal / 2 + ThreadLocalRandom.current().nextLong(nominal / 2 + 1);
+    }
+
+    void failed() {
+        failures++;
+    }
+
+    void succeeded() {
+        failures = 0;
+    }
+}
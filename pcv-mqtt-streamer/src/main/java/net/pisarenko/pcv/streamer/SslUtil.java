@@ -10,16 +10,38 @@ import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.openssl.jcajce.JcePEMDecryptorProviderBuilder;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Utility class to read encrypted PEM files and generate a SSL Socket Factory based on the provided certificates. The
@@ -28,81 +50,98 @@ import java.security.cert.X509Certificate;
  * Reference - https://gist.github.com/sharonbn/4104301"
  */
 public class SslUtil {
-    public static SSLSocketFactory getSocketFactory(
-            final String caCrtFile, final String crtFile, final String keyFile, final String password) {
-        try {
-            /**
-             * Add BouncyCastle as a Security Provider
-             */
-            Security.addProvider(new BouncyCastleProvider());
-
-            JcaX509CertificateConverter certificateConverter = new JcaX509CertificateConverter().setProvider("BC");
-
-            /**
-             * Load Certificate Authority (CA) certificate
-             */
-            PEMParser reader = new PEMParser(new FileReader(caCrtFile));
-            X509CertificateHolder caCertHolder = (X509CertificateHolder) reader.readObject();
-            reader.close();
+    private static final Logger LOGGER = LoggerFactory.getLogger(SslUtil.class);
 
-            X509Certificate caCert = certificateConverter.getCertificate(caCertHolder);
-
-            /**
-             * Load client certificate
-             */
-            reader = new PEMParser(new FileReader(crtFile));
-            X509CertificateHolder certHolder = (X509CertificateHolder) reader.readObject();
-            reader.close();
+    /**
+     * Decrypted credentials are cached in a key store of this type, see {@link #getKeyStoreCache}. JKS rather than
+     * PKCS12, whose key derivation alone takes longer to load than parsing the PEM files; the cache is protected by its
+     * file permissions, like the PEM key it is made from.
+     */
+    private static final String KEY_STORE_TYPE = "JKS";
+    private static final String CACHE_SUFFIX = ".jks";
+    /** How much of the SHA-256 of the PEM files goes into the cache's name. */
+    private static final int CACHE_HASH_BYTES = 8;
 
-            X509Certificate cert = certificateConverter.getCertificate(certHolder);
+    /** How long a TLS session may be resumed with an abbreviated handshake. */
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+    private static final int SESSION_CACHE_SIZE = 64;
 
-            /**
-             * Load client private key
-             */
-            reader = new PEMParser(new FileReader(keyFile));
-            Object keyObject = reader.readObject();
-            reader.close();
+    /** By the PEM files, so that every client connecting with the same credentials shares one TLS session cache. */
+    private static final Map<List<String>, FutureTask<SSLSocketFactory>> SOCKET_FACTORIES = new ConcurrentHashMap<>();
 
-            PEMDecryptorProvider provider = new JcePEMDecryptorProviderBuilder().build(password.toCharArray());
-            JcaPEMKeyConverter keyConverter = new JcaPEMKeyConverter().setProvider("BC");
+    /**
+     * Returns the socket factory for the given credentials, creating it on first use. Sockets from the same factory
+     * resume earlier TLS sessions with the same server, which makes reconnecting considerably cheaper than a full
+     * handshake. Returns null if the credentials cannot be loaded.
+     *
+     * Parsing and decrypting the PEM files is slow on small devices, so the result is cached in a key store next to
+     * the private key and read from there as long as the PEM files do not change.
+     */
+    public static SSLSocketFactory getSocketFactory(
+            final String caCrtFile, final String crtFile, final String keyFile, final String password) {
+        final List<String> files = Arrays.asList(caCrtFile, crtFile, keyFile, password);
+        final FutureTask<SSLSocketFactory> task = SOCKET_FACTORIES.computeIfAbsent(files,
+                key -> new FutureTask<>(() -> createSocketFactory(caCrtFile, crtFile, keyFile, password)));
+        // creates the factory on this thread unless another one already started; the map is not locked meanwhile
+        task.run();
+        SSLSocketFactory factory = null;
+        try {
+            factory = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.error("Failed to create the TLS socket factory", e);
+        }
+        if (factory == null) {
+            // let the next caller try again
+            SOCKET_FACTORIES.remove(files, task);
+        }
+        return factory;
+    }
 
-            KeyPair key;
+    /**
+     * Starts creating the socket factory in the background, e.g. while the PCV is being connected, so that it is likely
+     * ready by the time it is needed. Runs at low priority to keep out of the way of receiving the first samples.
+     */
+    public static void prepareSocketFactory(
+            final String caCrtFile, final String crtFile, final String keyFile, final String password) {
+        final Thread thread = new Thread(() -> getSocketFactory(caCrtFile, crtFile, keyFile, password), "tls-setup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
 
-            if (keyObject instanceof PEMEncryptedKeyPair) {
-                key = keyConverter.getKeyPair(((PEMEncryptedKeyPair) keyObject).decryptKeyPair(provider));
-            } else {
-                key = keyConverter.getKeyPair((PEMKeyPair) keyObject);
+    private static SSLSocketFactory createSocketFactory(
+            final String caCrtFile, final String crtFile, final String keyFile, final String password) {
+        try {
+            final Path cache = getKeyStoreCache(caCrtFile, crtFile, keyFile, password);
+            KeyStore keyStore = loadKeyStoreCache(cache, password);
+            if (keyStore == null) {
+                keyStore = readPemFiles(caCrtFile, crtFile, keyFile, password);
+                storeKeyStoreCache(cache, keyFile, keyStore, password);
             }
 
             /**
              * CA certificate is used to authenticate server
              */
-            KeyStore caKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-            caKeyStore.load(null, null);
-            caKeyStore.setCertificateEntry("ca-certificate", caCert);
-
             TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
                     TrustManagerFactory.getDefaultAlgorithm());
-            trustManagerFactory.init(caKeyStore);
+            trustManagerFactory.init(getTrustStore(keyStore));
 
             /**
              * Client key and certificates are sent to server so it can authenticate the client
              */
-            KeyStore clientKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-            clientKeyStore.load(null, null);
-            clientKeyStore.setCertificateEntry("certificate", cert);
-            clientKeyStore.setKeyEntry("private-key", key.getPrivate(), password.toCharArray(),
-                    new Certificate[]{cert});
-
             KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
                     KeyManagerFactory.getDefaultAlgorithm());
-            keyManagerFactory.init(clientKeyStore, password.toCharArray());
+            keyManagerFactory.init(keyStore, password.toCharArray());
 
             /**
              * Create SSL socket factory
              */
             SSLContext context = SSLContext.getInstance("TLSv1.2");
             context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+            context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
 
             /**
              * Return the newly created socket factory object
@@ -115,4 +154,154 @@ public class SslUtil {
 
         return null;
     }
+
+    /**
+     * Returns a key store with only the CA certificate. Initialised from the whole key store, the trust manager would
+     * also trust the client's own certificate chain.
+     */
+    private static KeyStore getTrustStore(final KeyStore keyStore) throws IOException, GeneralSecurityException {
+        final KeyStore trustStore = KeyStore.getInstance(KEY_STORE_TYPE);
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("ca-certificate", keyStore.getCertificate("ca-certificate"));
+        return trustStore;
+    }
+
+    /**
+     * Parses the PEM files into a key store with the CA certificate and the client key with its certificate.
+     */
+    private static KeyStore readPemFiles(
+            final String caCrtFile, final String crtFile, final String keyFile, final String password)
+            throws IOException, GeneralSecurityException {
+        /**
+         * Add BouncyCastle as a Security Provider
+         */
+        Security.addProvider(new BouncyCastleProvider());
+
+        JcaX509CertificateConverter certificateConverter = new JcaX509CertificateConverter().setProvider("BC");
+
+        /**
+         * Load Certificate Authority (CA) certificate
+         */
+        PEMParser reader = new PEMParser(new FileReader(caCrtFile));
+        X509CertificateHolder caCertHolder = (X509CertificateHolder) reader.readObject();
+        reader.close();
+
+        X509Certificate caCert = certificateConverter.getCertificate(caCertHolder);
+
+        /**
+         * Load client certificate
+         */
+        reader = new PEMParser(new FileReader(crtFile));
+        X509CertificateHolder certHolder = (X509CertificateHolder) reader.readObject();
+        reader.close();
+
+        X509Certificate cert = certificateConverter.getCertificate(certHolder);
+
+        /**
+         * Load client private key
+         */
+        reader = new PEMParser(new FileReader(keyFile));
+        Object keyObject = reader.readObject();
+        reader.close();
+
+        PEMDecryptorProvider provider = new JcePEMDecryptorProviderBuilder().build(password.toCharArray());
+        JcaPEMKeyConverter keyConverter = new JcaPEMKeyConverter().setProvider("BC");
+
+        KeyPair key;
+
+        if (keyObject instanceof PEMEncryptedKeyPair) {
+            key = keyConverter.getKeyPair(((PEMEncryptedKeyPair) keyObject).decryptKeyPair(provider));
+        } else {
+            key = keyConverter.getKeyPair((PEMKeyPair) keyObject);
+        }
+
+        KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
+        keyStore.load(null, null);
+        keyStore.setCertificateEntry("ca-certificate", caCert);
+        keyStore.setKeyEntry("private-key", key.getPrivate(), password.toCharArray(), new Certificate[]{cert});
+        return keyStore;
+    }
+
+    /**
+     * The key store cache lives next to the private key. Its name contains a hash of the PEM files, so that changed
+     * credentials are never served from a stale cache.
+     */
+    private static Path getKeyStoreCache(
+            final String caCrtFile, final String crtFile, final String keyFile, final String password)
+            throws IOException, NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (String file : new String[]{caCrtFile, crtFile, keyFile}) {
+            digest.update(Files.readAllBytes(Paths.get(file)));
+        }
+        digest.update(password.getBytes(StandardCharsets.UTF_8));
+
+        final StringBuilder hash = new StringBuilder();
+        for (byte b : Arrays.copyOf(digest.digest(), CACHE_HASH_BYTES)) {
+            hash.append(String.format("%02x", b));
+        }
+        final Path key = Paths.get(keyFile).toAbsolutePath();
+        return key.resolveSibling(key.getFileName() + "." + hash + CACHE_SUFFIX);
+    }
+
+    /**
+     * Returns the cached key store, or null if there is none or it cannot be read.
+     */
+    private static KeyStore loadKeyStoreCache(final Path cache, final String password) {
+        if (!Files.isRegularFile(cache)) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(cache)) {
+            final KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
+            keyStore.load(in, password.toCharArray());
+            return keyStore;
+        } catch (IOException | GeneralSecurityException e) {
+            LOGGER.warn("Failed to read key store cache {}, reading the PEM files", cache, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the key store cache readable by the owner only, as it holds the private key, and removes caches of
+     * earlier credentials. Failing to write it only costs the next start some time.
+     */
+    private static void storeKeyStoreCache(final Path cache, final String keyFile, final KeyStore keyStore,
+                                           final String password) {
+        final Path directory = cache.getParent();
+        final String prefix = Paths.get(keyFile).getFileName() + ".";
+        try {
+            final Path temp;
+            if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                temp = Files.createTempFile(directory, prefix, ".tmp",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                temp = Files.createTempFile(directory, prefix, ".tmp");
+            }
+            boolean moved = false;
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    keyStore.store(out, password.toCharArray());
+                }
+                Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                moved = true;
+            } finally {
+                // it holds the decrypted key and the stale cache cleanup below does not match it
+                if (!moved) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            LOGGER.warn("Failed to write key store cache {}", cache, e);
+            return;
+        }
+
+        try (DirectoryStream<Path> caches = Files.newDirectoryStream(directory, prefix + "*" + CACHE_SUFFIX)) {
+            for (Path stale : caches) {
+                if (!stale.equals(cache)) {
+                    Files.delete(stale);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Failed to remove stale key store caches", e);
+        }
+    }
 }
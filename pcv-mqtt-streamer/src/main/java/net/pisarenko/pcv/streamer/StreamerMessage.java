@@ -6,11 +6,38 @@ public class StreamerMessage {
     private String topic;
     private String value;
     private LocalDateTime timestamp;
+    /** When the message was queued for publishing, in nanoseconds since the epoch. 0 if not traced. */
+    private long enqueuedNanos;
+    /** The value is a JSON document to be embedded as is, rather than a string. */
+    private boolean jsonValue;
 
     public StreamerMessage(String topic, String value, LocalDateTime timestamp) {
+        this(topic, value, timestamp, 0);
+    }
+
+    /**
+     * A message whose way through the pipeline is traced: its timestamp is when the sample was captured and the
+     * streamer reports the time from there to publishing and acknowledgement.
+     */
+    public StreamerMessage(String topic, String value, LocalDateTime timestamp, long enqueuedNanos) {
         this.topic = topic;
         this.value = value;
         this.timestamp = timestamp;
+        this.enqueuedNanos = enqueuedNanos;
+    }
+
+    public StreamerMessage(String topic, String value, LocalDateTime timestamp, long enqueuedNanos,
+                           boolean jsonValue) {
+        this(topic, value, timestamp, enqueuedNanos);
+        this.jsonValue = jsonValue;
+    }
+
+    /**
+     * A message whose value is a JSON document, e.g. an object of aggregates. It is published as a nested JSON value
+     * and never in the binary format.
+     */
+    public static StreamerMessage ofJson(String topic, String json, LocalDateTime timestamp) {
+        return new StreamerMessage(topic, json, timestamp, 0, true);
     }
 
     public String getTopic() {
@@ -24,4 +51,16 @@ public class StreamerMessage {
     public LocalDateTime getTimestamp() {
         return timestamp;
     }
-}
\ No newline at end of file
+
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    public boolean isTraced() {
+        return enqueuedNanos != 0;
+    }
+
+    public boolean isJsonValue() {
+        return jsonValue;
+    }
+}
@@ -0,0 +1,17 @@
+package net.pisarenko.pcv.streamer;
+
+/**
+ * Encoding of the MQTT payload.
+ */
+public enum WireFormat {
+    /**
+     * One JSON object per message, or a JSON array of them for a batch. Values and timestamps are strings, except
+     * values that are JSON documents themselves (see {@link StreamerMessage#ofJson}), which are nested as they are.
+     */
+    JSON,
+    /**
+     * Compact binary frame, see {@link BinaryFrameEncoder}. Decode with {@code pcv-telemetry-decoder}. Batches with
+     * JSON document values are sent as JSON.
+     */
+    BINARY
+}
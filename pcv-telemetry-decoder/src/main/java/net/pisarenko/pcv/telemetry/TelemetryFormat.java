@@ -0,0 +1,25 @@
+package net.pisarenko.pcv.telemetry;
+
+/**
+ * Constants of the binary telemetry frame. One frame carries a batch of samples and is self-contained, so a lost
+ * MQTT message never breaks decoding of the next one. All integers are LEB128 varints, signed ones zigzag encoded:
+ *
+ * <pre>
+ *  2 bytes   magic "PT"
+ *  1 byte    format version
+ *  varint    number of channels C
+ *  C times   varint name length, UTF-8 channel name   (the channel ID is the position in this dictionary)
+ *  varint    base timestamp, milliseconds since the epoch
+ *  varint    number of samples S
+ *  S times   varint channel ID
+ *            zigzag value, delta to the previous value of the same channel (the first one to 0)
+ *            zigzag timestamp, delta to the previous sample (the first one to the base timestamp)
+ * </pre>
+ */
+public final class TelemetryFormat {
+    public static final byte MAGIC_0 = 'P';
+    public static final byte MAGIC_1 = 'T';
+    public static final byte VERSION = 1;
+
+    private TelemetryFormat() {}
+}
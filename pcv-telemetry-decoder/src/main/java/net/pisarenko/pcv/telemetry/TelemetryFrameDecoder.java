@@ -0,0 +1,66 @@
+package net.pisarenko.pcv.telemetry;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes binary telemetry frames, see {@link TelemetryFormat} for the layout.
+ */
+public final class TelemetryFrameDecoder {
+    private TelemetryFrameDecoder() {}
+
+    /**
+     * Returns true if the payload starts like a binary frame. Useful when a topic may carry JSON as well.
+     */
+    public static boolean isFrame(final byte[] payload) {
+        return payload.length >= 3 && payload[0] == TelemetryFormat.MAGIC_0 && payload[1] == TelemetryFormat.MAGIC_1;
+    }
+
+    /**
+     * Returns the samples of the frame in the order they were encoded.
+     *
+     * @throws IllegalArgumentException if the payload is not a valid frame
+     */
+    public static List<TelemetrySample> decode(final byte[] payload) {
+        if (!isFrame(payload)) {
+            throw new IllegalArgumentException("Not a telemetry frame");
+        }
+
+        final ByteBuffer in = ByteBuffer.wrap(payload);
+        in.position(2);
+        final int version = in.get();
+        if (version != TelemetryFormat.VERSION) {
+            throw new IllegalArgumentException("Unsupported telemetry frame version " + version);
+        }
+
+        try {
+            final String[] channels = new String[Varint.readLength(in)];
+            for (int i = 0; i < channels.length; i++) {
+                final byte[] name = new byte[Varint.readLength(in)];
+                in.get(name);
+                channels[i] = new String(name, StandardCharsets.UTF_8);
+            }
+
+            long timestamp = Varint.readUnsigned(in);
+            final int sampleCount = Varint.readLength(in);
+            final long[] lastValues = new long[channels.length];
+            final List<TelemetrySample> samples = new ArrayList<>(sampleCount);
+
+            for (int i = 0; i < sampleCount; i++) {
+                final int channel = Varint.readLength(in);
+                if (channel >= channels.length) {
+                    throw new IllegalArgumentException("Unknown channel ID " + channel);
+                }
+                lastValues[channel] += Varint.readSigned(in);
+                timestamp += Varint.readSigned(in);
+                samples.add(new TelemetrySample(channels[channel], lastValues[channel], timestamp));
+            }
+            return samples;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated telemetry frame", e);
+        }
+    }
+}
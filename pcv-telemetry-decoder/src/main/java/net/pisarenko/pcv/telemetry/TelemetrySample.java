@@ -0,0 +1,36 @@
+package net.pisarenko.pcv.telemetry;
+
+/**
+ * A single decoded channel value.
+ */
+public class TelemetrySample {
+    private final String channel;
+    private final long value;
+    private final long timestampMillis;
+
+    public TelemetrySample(final String channel, final long value, final long timestampMillis) {
+        this.channel = channel;
+        this.value = value;
+        this.timestampMillis = timestampMillis;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * Milliseconds since the epoch, UTC.
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    @Override
+    public String toString() {
+        return channel + "=" + value + " @ " + timestampMillis;
+    }
+}
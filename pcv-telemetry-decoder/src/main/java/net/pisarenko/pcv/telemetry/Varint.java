@@ -0,0 +1,62 @@
+package net.pisarenko.pcv.telemetry;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * LEB128 variable length integers: 7 bits per byte, least significant group first, high bit set on all but the last
+ * byte. Signed values are zigzag encoded first so that small negative numbers stay short.
+ */
+public final class Varint {
+    private static final int MAX_BYTES = 10;
+
+    private Varint() {}
+
+    public static void writeUnsigned(final ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static void writeSigned(final ByteArrayOutputStream out, final long value) {
+        writeUnsigned(out, zigzag(value));
+    }
+
+    public static long readUnsigned(final ByteBuffer in) {
+        long value = 0;
+        for (int i = 0; i < MAX_BYTES; i++) {
+            final byte b = in.get();
+            value |= (long) (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint longer than " + MAX_BYTES + " bytes");
+    }
+
+    public static long readSigned(final ByteBuffer in) {
+        return unzigzag(readUnsigned(in));
+    }
+
+    /**
+     * Reads an unsigned varint that must fit a non-negative int, e.g. a length or a count.
+     */
+    public static int readLength(final ByteBuffer in) {
+        final long value = readUnsigned(in);
+        if (value < 0 || value > in.capacity()) {
+            throw new BufferUnderflowException();
+        }
+        return (int) value;
+    }
+
+    public static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
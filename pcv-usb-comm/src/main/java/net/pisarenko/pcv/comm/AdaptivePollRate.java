@@ -0,0 +1,71 @@
+package net.pisarenko.pcv.comm;
+
+import net.pisarenko.pcv.common.PacketView;
+import net.pisarenko.pcv.values.RPM;
+import net.pisarenko.pcv.values.Throttle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the poll period from how fast the engine values change: the fastest rate as soon as RPM or throttle move
+ * quickly, slowing down step by step while they are steady, and the slowest rate while the engine is off.
+ *
+ * Fed with every response; may be fed and read from different threads.
+ */
+public class AdaptivePollRate {
+    /** RPM changing by this much per second counts as quick. */
+    private static final long FAST_RPM_PER_SECOND = 1000;
+    /** Throttle (0 to 1000) changing by this much per second counts as quick. */
+    private static final long FAST_THROTTLE_PER_SECOND = 300;
+    /** How much longer the period gets per steady sample. */
+    private static final double SLOW_DOWN_FACTOR = 1.25;
+
+    private final long minPeriodNanos;
+    private final long maxPeriodNanos;
+
+    private volatile long periodNanos;
+    private int lastRpm = -1;
+    private int lastThrottle = -1;
+    private long lastNanos;
+
+    public AdaptivePollRate(final long minPeriodMillis, final long maxPeriodMillis) {
+        this.minPeriodNanos = TimeUnit.MILLISECONDS.toNanos(minPeriodMillis);
+        this.maxPeriodNanos = TimeUnit.MILLISECONDS.toNanos(maxPeriodMillis);
+        this.periodNanos = minPeriodNanos;
+    }
+
+    /**
+     * Adjusts the period to a GET_CHANNEL_STATUS response.
+     */
+    public synchronized void update(final PacketView response) {
+        final int rpm = RPM.fromView(response);
+        final int throttle = Throttle.fromView(response);
+        final long now = System.nanoTime();
+        final long elapsed = now - lastNanos;
+
+        if (rpm == 0) {
+            periodNanos = maxPeriodNanos;
+        } else if (lastRpm < 0
+                || isQuick(rpm - lastRpm, elapsed, FAST_RPM_PER_SECOND)
+                || isQuick(throttle - lastThrottle, elapsed, FAST_THROTTLE_PER_SECOND)) {
+            periodNanos = minPeriodNanos;
+        } else {
+            periodNanos = Math.min(maxPeriodNanos, (long) (periodNanos * SLOW_DOWN_FACTOR));
+        }
+        lastRpm = rpm;
+        lastThrottle = throttle;
+        lastNanos = now;
+    }
+
+    /**
+     * Returns true if the change over the elapsed time is at least the given change per second, so that the answer
+     * does not depend on the current period.
+     */
+    private static boolean isQuick(final int change, final long elapsedNanos, final long perSecond) {
+        return change != 0 && Math.abs(change) * TimeUnit.SECONDS.toNanos(1) >= perSecond * elapsedNanos;
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+}
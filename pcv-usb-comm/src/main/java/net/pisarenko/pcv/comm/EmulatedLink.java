@@ -0,0 +1,142 @@
+package net.pisarenko.pcv.comm;
+
+import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketView;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A link to an emulated PCV. Every request is answered by {@link #respond} after a fixed latency, in order, through
+ * the synchronous or the asynchronous receive path just like the device does.
+ */
+abstract class EmulatedLink implements PacketLink {
+    private final long latencyNanos;
+    private final BlockingQueue<Response> responses = new LinkedBlockingQueue<>();
+
+    private volatile boolean closed;
+    private volatile UsbException receiveFailure;
+    private Thread deliveryThread;
+
+    EmulatedLink(final long latency, final TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Writes the answer to the request into the 64 byte response. Returns false if the emulated device has nothing
+     * more to say, which ends the connection.
+     */
+    protected abstract boolean respond(Packet request, byte[] response);
+
+    /**
+     * Queues a packet the device sends on its own, i.e. one that answers no request.
+     */
+    protected void sendUnsolicited(final byte[] packet) {
+        responses.offer(new Response(System.nanoTime() + latencyNanos, packet));
+    }
+
+    @Override
+    public void sendPacket(final Packet packet) throws UsbException {
+        if (closed) {
+            throw new UsbDisconnectedException();
+        }
+        final byte[] response = new byte[Packet.SIZE];
+        if (!respond(packet, response)) {
+            receiveFailure = new UsbException("Emulated device has no more data");
+            closed = true;
+            throw new UsbDisconnectedException();
+        }
+        responses.offer(new Response(System.nanoTime() + latencyNanos, response));
+    }
+
+    @Override
+    public void sendPacketAsync(final Packet packet) throws UsbException {
+        sendPacket(packet);
+    }
+
+    @Override
+    public int receive(final byte[] buffer) throws UsbException {
+        try {
+            final Response response = nextResponse();
+            if (response == null) {
+                throw new UsbDisconnectedException();
+            }
+            System.arraycopy(response.data, 0, buffer, 0, Packet.SIZE);
+            return Packet.SIZE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UsbException("Interrupted while waiting for a response");
+        }
+    }
+
+    @Override
+    public void startAsyncReceive(final int depth, final Consumer<PacketView> listener) {
+        final PacketView view = new PacketView();
+        deliveryThread = new Thread(() -> {
+            try {
+                Response response;
+                while ((response = nextResponse()) != null) {
+                    listener.accept(view.wrap(response.data));
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }, getClass().getSimpleName() + "-delivery");
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    @Override
+    public boolean isReceiving() {
+        return !closed && receiveFailure == null;
+    }
+
+    @Override
+    public UsbException getReceiveFailure() {
+        return receiveFailure;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (deliveryThread != null) {
+            deliveryThread.interrupt();
+        }
+    }
+
+    /**
+     * Waits for the next response to be due. Returns null once the link is closed.
+     */
+    private Response nextResponse() throws InterruptedException {
+        Response response = null;
+        while (response == null) {
+            if (closed) {
+                return null;
+            }
+            response = responses.poll(100, TimeUnit.MILLISECONDS);
+        }
+        long remaining;
+        while ((remaining = response.dueNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return response;
+    }
+
+    private static class Response {
+        private final long dueNanos;
+        private final byte[] data;
+
+        Response(final long dueNanos, final byte[] data) {
+            this.dueNanos = dueNanos;
+            this.data = data;
+        }
+    }
+}
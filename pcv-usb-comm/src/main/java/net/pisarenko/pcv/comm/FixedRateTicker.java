@@ -0,0 +1,104 @@
+package net.pisarenko.pcv.comm;
+
+import net.pisarenko.pcv.common.metrics.Counter;
+import net.pisarenko.pcv.common.metrics.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a loop at a fixed rate. Ticks are scheduled relative to the previous scheduled tick rather than to when the
+ * loop body finished, so time spent in the body does not add up to drift.
+ *
+ * If the loop falls behind by a whole period or more, the ticks that could not be kept are counted as missed and
+ * skipped instead of being caught up in a burst. How late each tick actually fires is tracked as jitter.
+ *
+ * The period may be changed at any time from any thread; it applies from the next tick. The loop itself must be
+ * driven by a single thread.
+ */
+class FixedRateTicker {
+    private volatile long periodNanos;
+    private long nextTick;
+    private boolean started;
+
+    private volatile long ticks;
+    private volatile long missedTicks;
+    private volatile long maxJitterNanos;
+    private volatile long totalJitterNanos;
+    private Counter missedCounter = new Counter();
+    private LatencyHistogram jitterHistogram = new LatencyHistogram();
+
+    FixedRateTicker(final long period, final TimeUnit unit) {
+        setPeriod(period, unit);
+    }
+
+    /**
+     * Also counts the missed ticks and records the jitter of every tick in the given metrics.
+     */
+    void setMetrics(final Counter missedTicks, final LatencyHistogram jitter) {
+        this.missedCounter = missedTicks;
+        this.jitterHistogram = jitter;
+    }
+
+    void setPeriod(final long period, final TimeUnit unit) {
+        this.periodNanos = unit.toNanos(period);
+    }
+
+    long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * Blocks until the next tick is due. The first call returns immediately.
+     */
+    void awaitNextTick() throws InterruptedException {
+        final long period = periodNanos;
+        final long now = System.nanoTime();
+        if (!started) {
+            started = true;
+            nextTick = now;
+            ticks++;
+            return;
+        }
+
+        nextTick += period;
+        final long behind = now - nextTick;
+        if (period > 0 && behind >= period) {
+            final long missed = behind / period;
+            missedTicks += missed;
+            missedCounter.add(missed);
+            nextTick += missed * period;
+        }
+
+        long remaining;
+        while ((remaining = nextTick - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        final long jitter = System.nanoTime() - nextTick;
+        ticks++;
+        totalJitterNanos += jitter;
+        jitterHistogram.record(jitter);
+        if (jitter > maxJitterNanos) {
+            maxJitterNanos = jitter;
+        }
+    }
+
+    long getTicks() {
+        return ticks;
+    }
+
+    long getMeanJitterNanos() {
+        final long count = ticks;
+        return count == 0 ? 0 : totalJitterNanos / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d ticks at %.1f ms, %d missed, jitter mean %.3f ms max %.3f ms",
+                ticks, periodNanos / 1e6, missedTicks, getMeanJitterNanos() / 1e6, maxJitterNanos / 1e6);
+    }
+}
@@ -0,0 +1,131 @@
+package net.pisarenko.pcv.comm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usb4java.Context;
+import org.usb4java.HotplugCallbackHandle;
+import org.usb4java.LibUsb;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wakes up whoever waits for a PCV as soon as libusb reports one arriving on the bus, instead of having them scan the
+ * bus periodically.
+ *
+ * Runs its own libusb context with a daemon thread that handles the hotplug events. On platforms without hotplug
+ * support (e.g. Windows) waiting simply times out, which brings back periodic scanning.
+ */
+final class HotplugMonitor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HotplugMonitor.class);
+
+    /** How long one round of event handling may block, in microseconds. */
+    private static final long EVENT_TIMEOUT_MICROS = 100_000;
+
+    private static HotplugMonitor instance;
+
+    private final Object lock = new Object();
+    /** Incremented on every arrival of a PCV. */
+    private long arrivals;
+    private boolean supported;
+
+    private HotplugMonitor() {}
+
+    /**
+     * Returns the monitor, starting it on first use.
+     */
+    static synchronized HotplugMonitor get() {
+        if (instance == null) {
+            instance = new HotplugMonitor();
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns true if arrivals are reported; otherwise {@link #awaitArrival} always waits for the full timeout.
+     */
+    boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Returns the number of arrivals seen so far, to be passed to {@link #awaitArrival}.
+     */
+    long getArrivals() {
+        synchronized (lock) {
+            return arrivals;
+        }
+    }
+
+    /**
+     * Waits until a PCV arrived after the given {@link #getArrivals()} count was taken, or until the timeout elapses.
+     * Returns true on arrival.
+     */
+    boolean awaitArrival(final long seenArrivals, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            long remaining;
+            while (arrivals == seenArrivals && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return arrivals != seenArrivals;
+        }
+    }
+
+    private void start() {
+        if (!LibUsb.hasCapability(LibUsb.CAP_HAS_HOTPLUG)) {
+            LOGGER.info("USB hotplug not supported, scanning the bus periodically");
+            return;
+        }
+
+        final Context context = new Context();
+        int result = LibUsb.init(context);
+        if (result != LibUsb.SUCCESS) {
+            LOGGER.warn("Failed to initialize libusb for hotplug: {}", LibUsb.errorName(result));
+            return;
+        }
+
+        result = LibUsb.hotplugRegisterCallback(context,
+                LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED | LibUsb.HOTPLUG_EVENT_DEVICE_LEFT, 0,
+                USBConnection.VENDOR_ID, USBConnection.PRODUCT_ID, LibUsb.HOTPLUG_MATCH_ANY,
+                (ctx, device, event, userData) -> {
+                    onEvent(event);
+                    return 0;
+                }, null, new HotplugCallbackHandle());
+        if (result != LibUsb.SUCCESS) {
+            LOGGER.warn("Failed to register USB hotplug callback: {}", LibUsb.errorName(result));
+            LibUsb.exit(context);
+            return;
+        }
+
+        supported = true;
+        final Thread thread = new Thread(() -> handleEvents(context), "usb-hotplug");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @SuppressWarnings("squid:S2189")
+    private void handleEvents(final Context context) {
+        while (true) {
+            final int result = LibUsb.handleEventsTimeoutCompleted(context, EVENT_TIMEOUT_MICROS, null);
+            if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_INTERRUPTED) {
+                LOGGER.debug("Failed to handle USB events: {}", LibUsb.errorName(result));
+            }
+        }
+    }
+
+    /**
+     * Called from the event thread. Must not do any USB I/O, libusb does not allow it in hotplug callbacks.
+     */
+    private void onEvent(final int event) {
+        if (event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED) {
+            LOGGER.debug("PCV arrived on the USB bus");
+            synchronized (lock) {
+                arrivals++;
+                lock.notifyAll();
+            }
+        } else {
+            LOGGER.debug("PCV left the USB bus");
+        }
+    }
+}
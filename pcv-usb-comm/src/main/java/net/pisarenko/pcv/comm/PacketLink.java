@@ -0,0 +1,28 @@
+package net.pisarenko.pcv.comm;
+
+import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketView;
+
+import javax.usb.UsbException;
+import java.util.function.Consumer;
+
+/**
+ * An open connection to something that answers PCV requests: the real device over USB or an emulator. See
+ * {@link USBConnection} for what the methods do. A lost connection is signalled with
+ * {@link javax.usb.UsbDisconnectedException}, like for the device.
+ */
+public interface PacketLink {
+    void sendPacket(Packet packet) throws UsbException;
+
+    int receive(byte[] buffer) throws UsbException;
+
+    void sendPacketAsync(Packet packet) throws UsbException;
+
+    void startAsyncReceive(int depth, Consumer<PacketView> listener) throws UsbException;
+
+    boolean isReceiving();
+
+    UsbException getReceiveFailure();
+
+    void close();
+}
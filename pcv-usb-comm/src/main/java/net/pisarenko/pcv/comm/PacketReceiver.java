@@ -1,79 +1,279 @@
 package net.pisarenko.pcv.comm;
 
+import net.pisarenko.pcv.common.NanoClock;
 import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketView;
+import net.pisarenko.pcv.common.metrics.Counter;
+import net.pisarenko.pcv.common.metrics.LatencyHistogram;
+import net.pisarenko.pcv.common.metrics.MetricsRegistry;
+import net.pisarenko.pcv.common.recording.SessionRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.usb.UsbDisconnectedException;
 import javax.usb.UsbException;
+import java.io.IOException;
 import java.util.Optional;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("squid:S2189")
 public class PacketReceiver implements Runnable {
     private static final Logger LOGGER = LoggerFactory.getLogger(PacketReceiver.class);
 
     private static final int RECEIVE_RETRY_COUNT = 20;
+    /** How long to wait for the device before trying again, unless the source reports it earlier. */
+    private static final long RECONNECT_WAIT_MILLIS = 2000;
+    /** Pipelined mode: how long a request may stay unanswered before its slot is reused. */
+    private static final long RESPONSE_TIMEOUT_MILLIS = 500;
+    /** Pipelined mode: how long a timed out request is remembered so that a late response is still delivered. */
+    private static final long LATE_RESPONSE_RETENTION_MILLIS = 5000;
+    /** Pipelined mode: read IRPs queued on top of the pipeline depth, to absorb unsolicited packets (e.g. CAN_PASS). */
+    private static final int EXTRA_RECEIVE_IRPS = 2;
 
-    /** How often should we request new values. */
-    private int frequency;
+    /** Log the poll timing statistics every this many ticks. */
+    private static final int TICK_STATS_INTERVAL = 600;
+
+    /** How often should we request new values, in nanoseconds. 0 polls as fast as the device answers. */
+    private long pollPeriodNanos;
+    /** Where the connection comes from. */
+    private final PacketSource source;
     /** Where the received packets go. */
     private Queue<Packet> queue;
+    /** How many requests may be in flight at once. 1 means strict request/response. */
+    private int pipelineDepth;
+    /** Null when polling at the fixed frequency. */
+    private AdaptivePollRate adaptiveRate;
+    /** Null when the session is not recorded. */
+    private volatile SessionRecorder recorder;
+
+    private LatencyHistogram roundTripTime = new LatencyHistogram();
+    /** Packets that answered no request in flight, e.g. unsolicited CAN_PASS or responses to a timed out request. */
+    private Counter unmatchedPackets = new Counter();
+    private Counter connectionsLost = new Counter();
+    private Counter missedTicks = new Counter();
+    private LatencyHistogram tickJitter = new LatencyHistogram();
 
     public PacketReceiver(final int frequency, final Queue<Packet> queue) {
-        this.frequency = frequency;
+        this(frequency, queue, 1);
+    }
+
+    public PacketReceiver(final int frequency, final Queue<Packet> queue, final int pipelineDepth) {
+        this(PacketSource.USB, frequency, queue, pipelineDepth);
+    }
+
+    public PacketReceiver(final PacketSource source, final int frequency, final Queue<Packet> queue,
+                          final int pipelineDepth) {
+        this.source = source;
+        this.pollPeriodNanos = TimeUnit.MILLISECONDS.toNanos(frequency);
         this.queue = queue;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Sets the poll period with a finer resolution than the millisecond frequency, e.g. to load test with an emulated
+     * device at thousands of requests per second. Must be called before the receiver is started.
+     */
+    public void setPollPeriod(final long period, final TimeUnit unit) {
+        this.pollPeriodNanos = unit.toNanos(period);
+    }
+
+    /**
+     * Lets the poll period follow how fast the values change, between the given rate's bounds, instead of using the
+     * fixed frequency. Must be called before the receiver is started.
+     */
+    public void setAdaptiveRate(final AdaptivePollRate adaptiveRate) {
+        this.adaptiveRate = adaptiveRate;
+    }
+
+    /**
+     * Records every packet that goes to the queue. Must be called before the receiver is started.
+     */
+    public void setRecorder(final SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Reports the USB round trip time, unmatched packets, lost connections and how well the poll schedule is kept.
+     * Must be called before the receiver is started.
+     */
+    public void setMetrics(final MetricsRegistry metrics) {
+        roundTripTime = metrics.histogram("pcv_usb_round_trip_seconds",
+                "Time from sending a request to the PCV to receiving its response");
+        unmatchedPackets = metrics.counter("pcv_usb_unmatched_packets_total",
+                "Packets from the PCV whose ID matched no request in flight");
+        connectionsLost = metrics.counter("pcv_usb_connections_lost_total", "Times the USB connection was lost");
+        missedTicks = metrics.counter("pcv_usb_missed_polls_total",
+                "Polls skipped because the receiver fell a whole period behind");
+        tickJitter = metrics.histogram("pcv_usb_poll_jitter_seconds", "How late each poll was sent");
     }
 
     @Override
     public void run() {
-        Optional<USBConnection> connectionOpt;
-        USBConnection connection;
-        Packet receivedPacket, sendPacket;
+        Optional<? extends PacketLink> connectionOpt;
 
         try {
             // main loop
             while (true) {
-                // keep trying to open a connection
-                connectionOpt = Optional.empty();
-                while (!connectionOpt.isPresent()) {
+                // keep trying to open a connection, right away whenever the device shows up
+                while (true) {
                     try {
                         LOGGER.debug("Trying to establish USB connection.");
-                        connectionOpt = USBConnection.establish();
+                        connectionOpt = source.open();
+                        if (connectionOpt.isPresent()) {
+                            break;
+                        }
                     } catch (UsbException e) {
                         LOGGER.debug("Failed to open USB connection", e);
                     }
 
-                    Thread.sleep(2000);
+                    source.awaitAvailable(RECONNECT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
                 }
                 LOGGER.info("USB connection established.");
 
-                // send and receive messages
-                connection = connectionOpt.get();
-                while (true) {
-                    try {
-                        sendPacket = Packet.createStatsRequestPacket();
-                        connection.sendPacket(sendPacket);
-                        int retryCount = 0;
-
-                        do {
-                            retryCount++;
-                            receivedPacket = connection.receivePacket();
-                        } while (receivedPacket.getId() != sendPacket.getId() && retryCount < RECEIVE_RETRY_COUNT);
-
-                        queue.add(receivedPacket);
-                    } catch (UsbDisconnectedException e) {
-                        LOGGER.info("USB connection lost");
-                        break;
-                    } catch (UsbException e) {
-                        LOGGER.debug("Exception occurred when sending/receiving", e);
+                if (pipelineDepth > 1) {
+                    receivePipelined(connectionOpt.get());
+                } else {
+                    receive(connectionOpt.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.info("USB receiver stopped");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends one request per tick and waits for its response. Packets are read into one reused buffer; only the
+     * matching response is copied out.
+     */
+    private void receive(final PacketLink connection) throws InterruptedException {
+        final byte[] receiveBuffer = new byte[Packet.SIZE];
+        final PacketView received = new PacketView().wrap(receiveBuffer);
+        final FixedRateTicker ticker = createTicker();
+        Packet sendPacket;
+
+        try {
+            while (true) {
+                awaitTick(ticker);
+                try {
+                    sendPacket = Packet.createStatsRequestPacket();
+                    final long sentAt = System.nanoTime();
+                    connection.sendPacket(sendPacket);
+                    int retryCount = 0;
+
+                    do {
+                        retryCount++;
+                        connection.receive(receiveBuffer);
+                    } while (received.getId() != sendPacket.getId() && retryCount < RECEIVE_RETRY_COUNT);
+                    if (received.getId() == sendPacket.getId()) {
+                        roundTripTime.recordSince(sentAt);
+                        unmatchedPackets.add(retryCount - 1L);
+                    } else {
+                        unmatchedPackets.add(retryCount);
                     }
 
-                    Thread.sleep(frequency);
+                    final long now = NanoClock.now();
+                    queue.offer(Packet.createFromReceivedData(receiveBuffer, NanoClock.toLocalDateTime(now)));
+                    record(received, now);
+                    if (adaptiveRate != null && received.getId() == sendPacket.getId()) {
+                        adaptiveRate.update(received);
+                    }
+                } catch (UsbDisconnectedException e) {
+                    LOGGER.info("USB connection lost");
+                    connectionsLost.increment();
+                    return;
+                } catch (UsbException e) {
+                    LOGGER.debug("Exception occurred when sending/receiving", e);
                 }
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Keeps up to {@link #pipelineDepth} requests in flight. Responses are matched to requests by ID as they arrive, so
+     * the sample rate is bounded by how fast the device answers rather than by the full round trip. Requests are sent
+     * at the frequency as long as the device keeps up; 0 polls as fast as the device allows.
+     */
+    private void receivePipelined(final PacketLink connection) throws InterruptedException {
+        final PendingRequests pending = new PendingRequests(
+                pipelineDepth, RESPONSE_TIMEOUT_MILLIS, LATE_RESPONSE_RETENTION_MILLIS);
+        final FixedRateTicker ticker = createTicker();
+
+        try {
+            connection.startAsyncReceive(pipelineDepth + EXTRA_RECEIVE_IRPS, view -> {
+                final long roundTrip = pending.complete(view.getId());
+                if (roundTrip < 0) {
+                    unmatchedPackets.increment();
+                } else {
+                    roundTripTime.record(roundTrip);
+                    final long now = NanoClock.now();
+                    queue.offer(Packet.createFromReceivedView(view, NanoClock.toLocalDateTime(now)));
+                    record(view, now);
+                    if (adaptiveRate != null) {
+                        adaptiveRate.update(view);
+                    }
+                }
+            });
+
+            while (connection.isReceiving()) {
+                if (pollPeriodNanos > 0 || adaptiveRate != null) {
+                    awaitTick(ticker);
+                }
+                if (!pending.acquireSlot()) {
+                    LOGGER.debug("No response within {} ms, {} requests pending", RESPONSE_TIMEOUT_MILLIS, pending.size());
+                    continue;
+                }
+
+                final Packet sendPacket = Packet.createStatsRequestPacket();
+                pending.register(sendPacket);
+                try {
+                    connection.sendPacketAsync(sendPacket);
+                } catch (UsbException e) {
+                    pending.cancel(sendPacket);
+                    LOGGER.debug("Exception occurred when sending", e);
+                }
+            }
+            LOGGER.info("USB connection lost", connection.getReceiveFailure());
+            connectionsLost.increment();
+        } catch (UsbDisconnectedException e) {
+            LOGGER.info("USB connection lost");
+            connectionsLost.increment();
+        } catch (UsbException e) {
+            LOGGER.debug("Failed to start receiving", e);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void record(final PacketView packet, final long receivedAtEpochNanos) {
+        final SessionRecorder sessionRecorder = recorder;
+        if (sessionRecorder == null) {
+            return;
+        }
+        try {
+            sessionRecorder.record(packet, receivedAtEpochNanos);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to record packet, recording stopped", e);
+            recorder = null;
+        }
+    }
+
+    private FixedRateTicker createTicker() {
+        final FixedRateTicker ticker = new FixedRateTicker(pollPeriodNanos, TimeUnit.NANOSECONDS);
+        ticker.setMetrics(missedTicks, tickJitter);
+        return ticker;
+    }
+
+    private void awaitTick(final FixedRateTicker ticker) throws InterruptedException {
+        if (adaptiveRate != null) {
+            ticker.setPeriod(adaptiveRate.getPeriodNanos(), TimeUnit.NANOSECONDS);
+        }
+        ticker.awaitNextTick();
+        if (ticker.getTicks() % TICK_STATS_INTERVAL == 0) {
+            LOGGER.debug("USB polling: {}", ticker);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,35 @@
+package net.pisarenko.pcv.comm;
+
+import javax.usb.UsbException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where {@link PacketReceiver} gets its connection from.
+ */
+@FunctionalInterface
+public interface PacketSource {
+    /** The PCV on the USB bus, or the first one if there are several. */
+    PacketSource USB = new UsbPacketSource(null);
+
+    /**
+     * The PCV with the given bus path or serial number, see {@link USBConnection#listDevices()}.
+     */
+    static PacketSource usb(final String deviceId) {
+        return new UsbPacketSource(deviceId);
+    }
+
+    /**
+     * Opens a connection, or returns empty if there is nothing to connect to right now.
+     */
+    Optional<? extends PacketLink> open() throws UsbException;
+
+    /**
+     * Waits until there may be something to connect to after {@link #open()} returned empty, at most for the timeout.
+     * Returns true if woken up early. By default simply waits for the timeout.
+     */
+    default boolean awaitAvailable(final long timeout, final TimeUnit unit) throws InterruptedException {
+        unit.sleep(timeout);
+        return false;
+    }
+}
@@ -0,0 +1,108 @@
+package net.pisarenko.pcv.comm;
+
+import net.pisarenko.pcv.common.Packet;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Requests sent to the PCV that are still waiting for a response, keyed by packet ID (see {@link Packet#getId()}).
+ *
+ * The table holds a fixed number of slots. A slot is taken when a request is sent and given back when its response
+ * arrives or when the request times out. A timed out request stays in the table for a while longer so that a late
+ * response is still recognized and delivered instead of being dropped as unsolicited.
+ */
+class PendingRequests {
+    private final Map<Long, PendingRequest> requests = new ConcurrentHashMap<>();
+    private final Semaphore slots;
+
+    /** After this long without a response the slot of a request is released. */
+    private final long timeoutNanos;
+    /** After this long a request is forgotten entirely. */
+    private final long retentionNanos;
+
+    PendingRequests(final int depth, final long timeoutMillis, final long retentionMillis) {
+        this.slots = new Semaphore(depth);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.retentionNanos = TimeUnit.MILLISECONDS.toNanos(retentionMillis);
+    }
+
+    /**
+     * Waits until a slot is free. Returns false if none became free within the timeout, in which case overdue
+     * requests have been expired and the caller should try again.
+     */
+    boolean acquireSlot() throws InterruptedException {
+        if (slots.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+            return true;
+        }
+        expireOverdue();
+        return false;
+    }
+
+    void register(final Packet request) {
+        requests.put(request.getId(), new PendingRequest(request, System.nanoTime()));
+    }
+
+    /**
+     * Gives back a slot that was acquired but not used, e.g. because sending failed.
+     */
+    void cancel(final Packet request) {
+        final PendingRequest pending = requests.remove(request.getId());
+        if (pending != null) {
+            pending.releaseSlot();
+        }
+    }
+
+    /**
+     * Matches the ID of a received packet against the table. If the packet answers a request sent earlier, even one
+     * that has already timed out, returns the round trip time in nanoseconds; otherwise returns -1.
+     */
+    long complete(final long responseId) {
+        final PendingRequest pending = requests.remove(responseId);
+        if (pending == null) {
+            return -1;
+        }
+        pending.releaseSlot();
+        return System.nanoTime() - pending.sentAt;
+    }
+
+    int size() {
+        return requests.size();
+    }
+
+    private void expireOverdue() {
+        final long now = System.nanoTime();
+        final Iterator<PendingRequest> it = requests.values().iterator();
+        while (it.hasNext()) {
+            final PendingRequest pending = it.next();
+            final long age = now - pending.sentAt;
+            if (age > retentionNanos) {
+                it.remove();
+                pending.releaseSlot();
+            } else if (age > timeoutNanos) {
+                pending.releaseSlot();
+            }
+        }
+    }
+
+    private class PendingRequest {
+        private final Packet request;
+        private final long sentAt;
+        private final AtomicBoolean slotReleased = new AtomicBoolean();
+
+        PendingRequest(final Packet request, final long sentAt) {
+            this.request = request;
+            this.sentAt = sentAt;
+        }
+
+        void releaseSlot() {
+            if (slotReleased.compareAndSet(false, true)) {
+                slots.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package net.pisarenko.pcv.comm;
+
+import net.pisarenko.pcv.common.Command;
+import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketUtil;
+import net.pisarenko.pcv.common.PacketView;
+import net.pisarenko.pcv.common.recording.RecordingFormat;
+import net.pisarenko.pcv.common.recording.SessionReplayer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.usb.UsbException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Emulates a PCV by answering every GET_CHANNEL_STATUS request with the next response from a session recording or an
+ * HHD dump, with the ID swapped for the request's. Replays the captured ride at whatever rate the receiver polls.
+ */
+public class ReplayPcv implements PacketSource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplayPcv.class);
+
+    private final Path file;
+    private final long latencyMicros;
+    /** Start over at the end instead of disconnecting. */
+    private final boolean loop;
+    private boolean exhausted;
+
+    public ReplayPcv(final Path file, final long latencyMicros, final boolean loop) {
+        this.file = file;
+        this.latencyMicros = latencyMicros;
+        this.loop = loop;
+    }
+
+    @Override
+    public Optional<PacketLink> open() throws UsbException {
+        if (exhausted) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new Link());
+        } catch (IOException e) {
+            throw new UsbException("Failed to open " + file + ": " + e.getMessage());
+        }
+    }
+
+    private class Link extends EmulatedLink {
+        private final PacketView view = new PacketView();
+        private Frames frames;
+
+        Link() throws IOException {
+            super(latencyMicros, TimeUnit.MICROSECONDS);
+            frames = openFrames();
+        }
+
+        @Override
+        protected boolean respond(final Packet request, final byte[] response) {
+            try {
+                exhausted = !nextResponse(response);
+                if (exhausted && loop) {
+                    frames.close();
+                    frames = openFrames();
+                    exhausted = !nextResponse(response);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read " + file, e);
+                exhausted = true;
+            }
+            if (exhausted) {
+                LOGGER.info("Replay of {} finished", file);
+                closeFrames();
+                return false;
+            }
+
+            final long id = request.getId();
+            for (int i = 0; i < 4; i++) {
+                response[i] = (byte) (id >> (i * 8));
+            }
+            return true;
+        }
+
+        /**
+         * Skips to the next channel status response in the file; recordings may contain other packets too.
+         */
+        private boolean nextResponse(final byte[] response) throws IOException {
+            while (frames.next(response)) {
+                if (view.wrap(response).getCommand() == Command.GET_CHANNEL_STATUS) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            closeFrames();
+        }
+
+        private void closeFrames() {
+            try {
+                frames.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Responses from the file, in order.
+     */
+    private interface Frames {
+        /**
+         * Copies the next response into the buffer. Returns false at the end.
+         */
+        boolean next(byte[] buffer) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private Frames openFrames() throws IOException {
+        if (file.toString().endsWith(RecordingFormat.EXTENSION)) {
+            final SessionReplayer replayer = SessionReplayer.open(file);
+            return new Frames() {
+                @Override
+                public boolean next(final byte[] buffer) {
+                    if (!replayer.hasNext()) {
+                        return false;
+                    }
+                    replayer.next().copyTo(buffer);
+                    return true;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    replayer.close();
+                }
+            };
+        }
+
+        final Stream<Packet> packets = PacketUtil.streamUSBPackets(file)
+                .filter(packet -> packet.getDirection() == Packet.PacketDirection.UP)
+                .filter(packet -> packet.getCommand() == Command.GET_CHANNEL_STATUS);
+        final Iterator<Packet> iterator = packets.iterator();
+        return new Frames() {
+            @Override
+            public boolean next(final byte[] buffer) {
+                if (!iterator.hasNext()) {
+                    return false;
+                }
+                final byte[] data = iterator.next().getRawPacket();
+                System.arraycopy(data, 0, buffer, 0, Packet.SIZE);
+                return true;
+            }
+
+            @Override
+            public void close() {
+                packets.close();
+            }
+        };
+    }
+}
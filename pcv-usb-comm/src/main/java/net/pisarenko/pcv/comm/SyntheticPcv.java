@@ -0,0 +1,113 @@
+package net.pisarenko.pcv.comm;
+
+import net.pisarenko.pcv.common.Command;
+import net.pisarenko.pcv.common.Packet;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emulates a PCV on a bike doing laps: idling, accelerating through the rev range, cruising and coming back down.
+ * GET_CHANNEL_STATUS requests are answered with matching IDs and RPM and throttle values that follow the ride, so the
+ * whole pipeline can be exercised (and loaded: it answers as fast as it is asked) without a motorcycle.
+ */
+public class SyntheticPcv implements PacketSource {
+    /** Length of one lap of the ride. */
+    private static final double LAP_SECONDS = 20;
+    private static final int IDLE_RPM = 1300;
+    private static final int MAX_RPM = 9500;
+    private static final int MAX_THROTTLE = 1000;
+    private static final int RPM_NOISE = 15;
+
+    /** A real response, used for the channels that are not emulated. */
+    private static final byte[] RESPONSE_PAYLOAD = {
+            0x01, (byte) 0x9C, 0x11, (byte) 0xC5, 0x02, 0x20, 0x03, 0x00, 0x00, 0x1C, 0x00, 0x17, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x6D, 0x04, 0x00, 0x00
+    };
+
+    private final long latencyMicros;
+    /** Send a CAN_PASS packet after every this many responses, like the device does; 0 for never. */
+    private int unsolicitedEvery;
+
+    public SyntheticPcv(final long latencyMicros) {
+        this.latencyMicros = latencyMicros;
+    }
+
+    /**
+     * Makes the emulator interleave unsolicited CAN_PASS packets, which the receiver has to skip.
+     */
+    public void setUnsolicitedEvery(final int responses) {
+        this.unsolicitedEvery = responses;
+    }
+
+    @Override
+    public Optional<PacketLink> open() {
+        return Optional.of(new Link());
+    }
+
+    private class Link extends EmulatedLink {
+        private final long startNanos = System.nanoTime();
+        private final Random random = new Random();
+        private long responses;
+
+        Link() {
+            super(latencyMicros, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        protected boolean respond(final Packet request, final byte[] response) {
+            if (request.getCommand() != Command.GET_CHANNEL_STATUS) {
+                return true;
+            }
+
+            final double lap = ((System.nanoTime() - startNanos) / 1e9 % LAP_SECONDS) / LAP_SECONDS;
+            final double load = rideLoad(lap);
+            final int throttle = (int) (load * MAX_THROTTLE);
+            final int rpm = IDLE_RPM + (int) (load * (MAX_RPM - IDLE_RPM)) + random.nextInt(2 * RPM_NOISE) - RPM_NOISE;
+
+            writeHeader(response, request.getId(), Command.GET_CHANNEL_STATUS, RESPONSE_PAYLOAD.length);
+            System.arraycopy(RESPONSE_PAYLOAD, 0, response, 8, RESPONSE_PAYLOAD.length);
+            writeShort(response, 8 + 1, rpm);
+            writeShort(response, 8 + 9, throttle);
+
+            if (unsolicitedEvery > 0 && ++responses % unsolicitedEvery == 0) {
+                final byte[] canPass = new byte[Packet.SIZE];
+                writeHeader(canPass, random.nextInt(), Command.CAN_PASS, 0);
+                sendUnsolicited(canPass);
+            }
+            return true;
+        }
+
+        /**
+         * Throttle opening from 0 to 1 over a lap: idle, roll on, hold, roll off.
+         */
+        private double rideLoad(final double lap) {
+            if (lap < 0.2) {
+                return 0;
+            } else if (lap < 0.5) {
+                return (lap - 0.2) / 0.3;
+            } else if (lap < 0.7) {
+                return 0.6 + 0.1 * Math.sin(lap * 40);
+            } else if (lap < 0.9) {
+                return 0.6 * (0.9 - lap) / 0.2;
+            }
+            return 0;
+        }
+    }
+
+    private static void writeHeader(final byte[] packet, final long id, final Command command,
+                                    final int payloadLength) {
+        packet[0] = (byte) id;
+        packet[1] = (byte) (id >> 8);
+        packet[2] = (byte) (id >> 16);
+        packet[3] = (byte) (id >> 24);
+        writeShort(packet, 4, command.toValue());
+        writeShort(packet, 6, payloadLength);
+    }
+
+    private static void writeShort(final byte[] packet, final int offset, final int value) {
+        packet[offset] = (byte) value;
+        packet[offset + 1] = (byte) (value >> 8);
+    }
+}
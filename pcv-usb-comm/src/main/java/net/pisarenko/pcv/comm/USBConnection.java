@@ -1,77 +1,382 @@
 package net.pisarenko.pcv.comm;
 
 import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.usb.*;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.time.Clock;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
-public class USBConnection {
+public class USBConnection implements PacketLink {
     private static final Logger LOGGER = LoggerFactory.getLogger(USBConnection.class);
 
-    private static final int VENDOR_ID = 0x10b6;
-    private static final int PRODUCT_ID = 0x0502;
+    static final int VENDOR_ID = 0x10b6;
+    static final int PRODUCT_ID = 0x0502;
 
     private static final byte FROM_DEVICE_ENDPOINT_ADDRESS = (byte) 0x81;
     private static final byte TO_DEVICE_ENDPOINT_ADDRESS = (byte) 0x01;
 
+    /** Where the device is plugged in, see {@link #listDevices()}. */
+    private String busPath;
+    /** Claimed while the connection is open. */
+    private UsbInterface iface;
     private UsbPipe toDevice;
     private UsbPipe fromDevice;
+    /** Reused for every {@link #receive(byte[])}. */
+    private UsbIrp receiveIrp;
+    /** Null unless {@link #startAsyncReceive} was called. */
+    private UsbPipeListener receiveListener;
+
+    /** Set once an asynchronous read fails; the connection is unusable afterwards. */
+    private volatile UsbException receiveFailure;
+    private volatile boolean closed;
 
     private USBConnection() {}
 
+    /**
+     * Opens the first PCV found.
+     */
     public static Optional<USBConnection> establish() throws UsbException {
-        UsbDevice device = findUSBDevice(UsbHostManager.getUsbServices().getRootUsbHub());
+        return establish(null);
+    }
+
+    /**
+     * Opens the PCV with the given bus path (see {@link #listDevices()}) or serial number, or the first one found if
+     * null.
+     */
+    public static Optional<USBConnection> establish(final String deviceId) throws UsbException {
+        final UsbDevice device = findUSBDevice(deviceId);
         if (device == null) {
-            LOGGER.debug("PCV USB device not found");
+            LOGGER.debug("PCV USB device {} not found", deviceId == null ? "" : deviceId);
             return Optional.empty();
         }
+        return Optional.of(open(device));
+    }
+
+    /**
+     * Opens the PCV at the given bus path by following its bus and port numbers down from the root hub, without
+     * scanning the rest of the bus. Returns empty if there is no PCV at that path.
+     */
+    static Optional<USBConnection> establishAt(final String busPath) throws UsbException {
+        final UsbDevice device = findUSBDeviceAt(busPath);
+        return device == null ? Optional.empty() : Optional.of(open(device));
+    }
+
+    /**
+     * Makes the device tree pick up attached and detached devices right away. usb4java otherwise only refreshes it
+     * from its background scan every 500 ms.
+     */
+    static void rescan() throws UsbException {
+        final UsbServices services = UsbHostManager.getUsbServices();
+        if (services instanceof org.usb4java.javax.Services) {
+            ((org.usb4java.javax.Services) services).scan();
+        }
+    }
 
+    private static USBConnection open(final UsbDevice device) throws UsbException {
         USBConnection connection = new USBConnection();
+        connection.busPath = getBusPath(device);
 
         UsbConfiguration configuration = device.getActiveUsbConfiguration();
         UsbInterface iface = configuration.getUsbInterface((byte)0);
         iface.claim(usbInterface -> true);
+        connection.iface = iface;
+
+        try {
+            connection.fromDevice = iface.getUsbEndpoint(FROM_DEVICE_ENDPOINT_ADDRESS).getUsbPipe();
+            connection.fromDevice.open();
 
-        connection.fromDevice = iface.getUsbEndpoint(FROM_DEVICE_ENDPOINT_ADDRESS).getUsbPipe();
-        connection.fromDevice.open();
+            connection.toDevice = iface.getUsbEndpoint(TO_DEVICE_ENDPOINT_ADDRESS).getUsbPipe();
+            connection.toDevice.open();
+        } catch (UsbException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
 
-        connection.toDevice = iface.getUsbEndpoint(TO_DEVICE_ENDPOINT_ADDRESS).getUsbPipe();
-        connection.toDevice.open();
+        return connection;
+    }
 
-        return Optional.of(connection);
+    /**
+     * Returns where the device is plugged in, see {@link #listDevices()}.
+     */
+    public String getBusPath() {
+        return busPath;
     }
 
+    @Override
     public void sendPacket(final Packet packet) throws UsbException {
         toDevice.syncSubmit(packet.getRawPacket());
     }
 
     public Packet receivePacket() throws UsbException {
-        final byte[] buffer = new byte[64];
-        fromDevice.syncSubmit(buffer);
+        final byte[] buffer = new byte[Packet.SIZE];
+        receive(buffer);
         return Packet.createFromReceivedData(buffer, LocalDateTime.now(Clock.systemUTC()));
     }
 
-    private static UsbDevice findUSBDevice(final UsbHub rootHub) {
-        UsbDevice pcv;
+    /**
+     * Reads the next packet into the caller's buffer, which must hold {@link Packet#SIZE} bytes, and returns the number
+     * of bytes received. Meant to be called in a loop with the same buffer and a {@link PacketView} over it.
+     */
+    @Override
+    public int receive(final byte[] buffer) throws UsbException {
+        if (receiveIrp == null) {
+            receiveIrp = fromDevice.createUsbIrp();
+        }
+        receiveIrp.setData(buffer);
+        receiveIrp.setActualLength(0);
+        receiveIrp.setUsbException(null);
+        receiveIrp.setComplete(false);
+        fromDevice.syncSubmit(receiveIrp);
+        return receiveIrp.getActualLength();
+    }
 
-        for (UsbDevice device: (List<UsbDevice>) rootHub.getAttachedUsbDevices()) {
-            if (device.isUsbHub()) {
-                pcv = findUSBDevice((UsbHub) device);
-                if (pcv != null) {
-                    return pcv;
+    /**
+     * Queues the packet on the outgoing pipe and returns immediately.
+     */
+    @Override
+    public void sendPacketAsync(final Packet packet) throws UsbException {
+        toDevice.asyncSubmit(packet.getRawPacket());
+    }
+
+    /**
+     * Keeps {@code depth} read IRPs queued on the incoming interrupt pipe and hands every received packet to the
+     * listener. A completed IRP is resubmitted right away so the pipe never idles while a response is processed.
+     *
+     * The listener is called from the usb4java IRP queue thread, one packet at a time. It gets a view over the IRP's
+     * buffer, which is reused as soon as the listener returns.
+     */
+    @Override
+    public void startAsyncReceive(final int depth, final Consumer<PacketView> listener) throws UsbException {
+        final PacketView view = new PacketView();
+        receiveListener = new UsbPipeListener() {
+            @Override
+            public void dataEventOccurred(final UsbPipeDataEvent event) {
+                final UsbIrp irp = event.getUsbIrp();
+                listener.accept(view.wrap(irp.getData()));
+
+                if (closed) {
+                    return;
+                }
+                try {
+                    irp.setActualLength(0);
+                    irp.setComplete(false);
+                    fromDevice.asyncSubmit(irp);
+                } catch (UsbException e) {
+                    failReceive(e);
+                } catch (UsbDisconnectedException | UsbNotOpenException e) {
+                    failReceive(new UsbException(e.getMessage()));
+                }
+            }
+
+            @Override
+            public void errorEventOccurred(final UsbPipeErrorEvent event) {
+                if (!closed) {
+                    failReceive(event.getUsbException());
+                }
+            }
+        };
+        fromDevice.addUsbPipeListener(receiveListener);
+
+        for (int i = 0; i < depth; i++) {
+            fromDevice.asyncSubmit(new byte[Packet.SIZE]);
+        }
+    }
+
+    /**
+     * Returns true while asynchronous reads are running without errors.
+     */
+    @Override
+    public boolean isReceiving() {
+        return !closed && receiveFailure == null;
+    }
+
+    @Override
+    public UsbException getReceiveFailure() {
+        return receiveFailure;
+    }
+
+    /**
+     * Aborts outstanding transfers, closes both pipes and releases the interface, so that the device can be opened
+     * again. Errors are ignored since the device is usually gone by now.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (receiveListener != null) {
+            fromDevice.removeUsbPipeListener(receiveListener);
+            receiveListener = null;
+        }
+        for (UsbPipe pipe : new UsbPipe[]{fromDevice, toDevice}) {
+            try {
+                if (pipe != null && pipe.isOpen()) {
+                    pipe.abortAllSubmissions();
+                    pipe.close();
                 }
+            } catch (UsbException | RuntimeException e) {
+                LOGGER.debug("Failed to close USB pipe", e);
+            }
+        }
+        try {
+            if (iface.isClaimed()) {
+                iface.release();
+            }
+        } catch (UsbException | RuntimeException e) {
+            LOGGER.debug("Failed to release USB interface", e);
+        }
+    }
+
+    private void failReceive(final UsbException e) {
+        if (receiveFailure == null) {
+            LOGGER.debug("Asynchronous USB receive failed", e);
+            receiveFailure = e;
+        }
+    }
+
+    /**
+     * Returns the bus paths of all attached PCVs, e.g. "1-2.4" for port 4 of the hub on port 2 of bus 1, as in Linux
+     * sysfs. A path identifies the USB port a device is plugged into and so stays the same across reconnects and
+     * restarts.
+     */
+    public static List<String> listDevices() throws UsbException {
+        final List<String> paths = new ArrayList<>();
+        for (UsbDevice device : findUSBDevices()) {
+            paths.add(getBusPath(device));
+        }
+        return paths;
+    }
+
+    private static UsbDevice findUSBDevice(final String deviceId) throws UsbException {
+        final List<UsbDevice> devices = findUSBDevices();
+        if (deviceId == null) {
+            return devices.isEmpty() ? null : devices.get(0);
+        }
+        for (UsbDevice device : devices) {
+            if (deviceId.equals(getBusPath(device))) {
+                return device;
+            }
+        }
+        for (UsbDevice device : devices) {
+            if (deviceId.equals(getSerialNumber(device))) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private static UsbDevice findUSBDeviceAt(final String busPath) throws UsbException {
+        final String[] numbers = busPath.split("[-.]");
+        UsbDevice device = UsbHostManager.getUsbServices().getRootUsbHub();
+        try {
+            // the virtual root hub holds the root hub of every bus
+            device = findAttached((UsbHub) device, "getBusNumber", Integer.parseInt(numbers[0]));
+            for (int i = 1; i < numbers.length && device != null; i++) {
+                device = device.isUsbHub()
+                        ? findAttached((UsbHub) device, "getPortNumber", Integer.parseInt(numbers[i])) : null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (device == null) {
+            return null;
+        }
+        final UsbDeviceDescriptor desc = device.getUsbDeviceDescriptor();
+        return desc.idVendor() == VENDOR_ID && desc.idProduct() == PRODUCT_ID ? device : null;
+    }
+
+    /**
+     * Returns the device attached to the hub whose libusb bus or port number (see {@link #getIdNumber}) is the given
+     * one, or null.
+     */
+    private static UsbDevice findAttached(final UsbHub hub, final String getter, final int number)
+            throws UsbException {
+        for (Object attached : hub.getAttachedUsbDevices()) {
+            final UsbDevice device = (UsbDevice) attached;
+            if (getIdNumber(device, getter) == number) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private static List<UsbDevice> findUSBDevices() throws UsbException {
+        final List<UsbDevice> found = new ArrayList<>();
+        findUSBDevices(UsbHostManager.getUsbServices().getRootUsbHub(), found);
+        return found;
+    }
+
+    private static void findUSBDevices(final UsbHub hub, final List<UsbDevice> found) {
+        for (Object attached : hub.getAttachedUsbDevices()) {
+            final UsbDevice device = (UsbDevice) attached;
+            if (device.isUsbHub()) {
+                findUSBDevices((UsbHub) device, found);
             } else {
                 UsbDeviceDescriptor desc = device.getUsbDeviceDescriptor();
                 if (desc.idVendor() == VENDOR_ID && desc.idProduct() == PRODUCT_ID) {
-                    return device;
+                    found.add(device);
                 }
             }
         }
-        return null;
+    }
+
+    /**
+     * Bus number and port numbers from the root hub down to the device, as libusb reports them. The javax.usb ports
+     * can't be used for this: usb4java attaches every device to the first free port of its hub.
+     */
+    private static String getBusPath(final UsbDevice device) throws UsbException {
+        final Deque<Integer> ports = new ArrayDeque<>();
+        UsbDevice current = device;
+        int port;
+        // root hubs have port number 0
+        while ((port = getIdNumber(current, "getPortNumber")) != 0) {
+            ports.addFirst(port);
+            current = current.getParentUsbPort().getUsbHub();
+        }
+
+        final StringBuilder path = new StringBuilder().append(getIdNumber(device, "getBusNumber"));
+        String separator = "-";
+        for (Integer number : ports) {
+            path.append(separator).append(number);
+            separator = ".";
+        }
+        return path.toString();
+    }
+
+    /**
+     * Reads a number from the device's usb4java {@code DeviceId}, which is not public.
+     */
+    private static int getIdNumber(final UsbDevice device, final String getter) throws UsbException {
+        try {
+            final Method getId = device.getClass().getMethod("getId");
+            getId.setAccessible(true);
+            final Object id = getId.invoke(device);
+            final Method number = id.getClass().getMethod(getter);
+            number.setAccessible(true);
+            return (Integer) number.invoke(id);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new UsbException("Cannot locate USB device " + device + ": " + e);
+        }
+    }
+
+    private static String getSerialNumber(final UsbDevice device) {
+        try {
+            return device.getSerialNumberString();
+        } catch (UsbException | UnsupportedEncodingException | RuntimeException e) {
+            LOGGER.debug("Failed to read serial number", e);
+            return null;
+        }
     }
 }
@@ -0,0 +1,76 @@
+package net.pisarenko.pcv.comm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.usb.UsbException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to a PCV on the USB bus.
+ *
+ * Remembers where the device was plugged in, so that after it drops off the bus (e.g. on an ignition cycle) it is
+ * looked up at that port first instead of scanning the whole bus. Waiting for the device is driven by hotplug events
+ * where libusb supports them; elsewhere the bus is scanned again after every wait.
+ */
+final class UsbPacketSource implements PacketSource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UsbPacketSource.class);
+
+    /** Bus path or serial number, null for the first PCV found. */
+    private final String deviceId;
+    /** Bus path of the last connected device, null until connected once. */
+    private volatile String lastBusPath;
+    /** Arrivals seen by the last {@link #open()}; any later arrival is reflected in the device tree first. */
+    private volatile long seenArrivals;
+    /** Whether the wait strategy was logged already. */
+    private volatile boolean waitLogged;
+
+    UsbPacketSource(final String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    @Override
+    public Optional<? extends PacketLink> open() throws UsbException {
+        final HotplugMonitor monitor = HotplugMonitor.get();
+        final long arrivals = monitor.getArrivals();
+        if (!monitor.isSupported() || arrivals != seenArrivals) {
+            seenArrivals = arrivals;
+            USBConnection.rescan();
+        }
+
+        final String busPath = lastBusPath;
+        if (busPath != null) {
+            final Optional<USBConnection> connection = USBConnection.establishAt(busPath);
+            if (connection.isPresent()) {
+                return connection;
+            }
+        }
+
+        final Optional<USBConnection> connection = USBConnection.establish(deviceId);
+        if (connection.isPresent()) {
+            lastBusPath = connection.get().getBusPath();
+            LOGGER.debug("PCV found at {}", lastBusPath);
+        }
+        return connection;
+    }
+
+    /**
+     * Returns as soon as a PCV arrives on the bus, including one that arrived during the last {@link #open()}. Without
+     * hotplug support it just waits for the timeout, and the next {@link #open()} scans the bus.
+     */
+    @Override
+    public boolean awaitAvailable(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final HotplugMonitor monitor = HotplugMonitor.get();
+        if (!waitLogged) {
+            waitLogged = true;
+            LOGGER.info(monitor.isSupported() ? "Waiting for the PCV to be plugged in"
+                    : "Waiting for the PCV, looking for it every " + unit.toMillis(timeout) + " ms");
+        }
+        if (!monitor.isSupported()) {
+            unit.sleep(timeout);
+            return false;
+        }
+        return monitor.awaitArrival(seenArrivals, timeout, unit);
+    }
+}
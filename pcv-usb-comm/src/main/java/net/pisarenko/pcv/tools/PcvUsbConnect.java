@@ -1,46 +1,55 @@
 package net.pisarenko.pcv.tools;
 
-import com.google.common.collect.EvictingQueue;
-import com.google.common.collect.Queues;
 import net.pisarenko.pcv.comm.PacketReceiver;
 import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.queue.BlockingWaitStrategy;
+import net.pisarenko.pcv.common.queue.OverflowPolicy;
+import net.pisarenko.pcv.common.queue.RingBuffer;
 import net.pisarenko.pcv.values.RPM;
 import net.pisarenko.pcv.values.Throttle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.format.DateTimeFormatter;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Establish a USB connection with Power Commander 5.
  */
 public class PcvUsbConnect {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PcvUsbConnect.class);
+
     private static final int REFRESH_FREQUENCY_MILLIS = 0;
+    private static final int PIPELINE_DEPTH = 4;
 
     public static void main(String[] args) throws Exception {
-        Queue<Packet> queue = Queues.synchronizedQueue(EvictingQueue.<Packet>create(1000));
+        BlockingQueue<Packet> queue = new RingBuffer<>(1000, OverflowPolicy.DROP_OLDEST, new BlockingWaitStrategy());
 
-        new Thread(new PacketReceiver(REFRESH_FREQUENCY_MILLIS, queue)).start();
+        new Thread(new PacketReceiver(REFRESH_FREQUENCY_MILLIS, queue, PIPELINE_DEPTH)).start();
         new Thread(new PacketPrinter(queue)).start();
     }
 
     @SuppressWarnings("squid:S2189")
     private static class PacketPrinter implements Runnable {
-        private Queue<Packet> queue;
+        private BlockingQueue<Packet> queue;
 
-        public PacketPrinter(Queue<Packet> queue) {
+        public PacketPrinter(BlockingQueue<Packet> queue) {
             this.queue = queue;
         }
 
         @Override
         public void run() {
-            while (true) {
-                if (!queue.isEmpty()) {
-                    Packet packet = queue.poll();
+            try {
+                while (true) {
+                    Packet packet = queue.take();
                     System.out.println(
                             DateTimeFormatter.ISO_DATE_TIME.format(packet.getTimestamp()) + " " +
                                     "THROTTLE: " + Throttle.fromPacket(packet) +
                                     " RPM: " + RPM.fromPacket(packet));
                 }
+            } catch (InterruptedException e) {
+                LOGGER.info("Packet printer stopped");
+                Thread.currentThread().interrupt();
             }
         }
     }
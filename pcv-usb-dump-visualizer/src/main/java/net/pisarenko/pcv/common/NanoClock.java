@@ -0,0 +1,74 @@
+package net.pisarenko.pcv.common;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall clock time in nanoseconds since the epoch, with the resolution of {@link System#nanoTime()}.
+ *
+ * The system clock is read once and from then on time advances with the monotonic timer, so stamps taken anywhere in
+ * the pipeline can be ordered and subtracted from each other even at kHz sample rates. The system clock is checked
+ * again every {@link #CHECK_INTERVAL_NANOS}; when it is more than {@link #MAX_DRIFT_NANOS} away, e.g. because NTP
+ * synced after starting at ignition without a real time clock, time jumps to it once.
+ */
+public final class NanoClock {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /** Small enough to follow a stepped system clock, large enough not to jump for the timers' normal drift. */
+    private static final long MAX_DRIFT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static volatile Anchor anchor = new Anchor(System.nanoTime());
+
+    private NanoClock() {}
+
+    /**
+     * Returns the current time in nanoseconds since the epoch.
+     */
+    public static long now() {
+        final Anchor current = anchor;
+        final long nanoTime = System.nanoTime();
+        final long epochNanos = current.epochNanos + (nanoTime - current.nanoTime);
+        if (nanoTime - current.checkedAt < CHECK_INTERVAL_NANOS) {
+            return epochNanos;
+        }
+
+        final Anchor checked = new Anchor(nanoTime);
+        if (Math.abs(checked.epochNanos - epochNanos) > MAX_DRIFT_NANOS) {
+            anchor = checked;
+            return checked.epochNanos;
+        }
+        current.checkedAt = nanoTime;
+        return epochNanos;
+    }
+
+    public static LocalDateTime toLocalDateTime(final long epochNanos) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(epochNanos, NANOS_PER_SECOND),
+                (int) Math.floorMod(epochNanos, NANOS_PER_SECOND), ZoneOffset.UTC);
+    }
+
+    /**
+     * Converts a UTC timestamp, e.g. {@link Packet#getTimestamp()}, back to nanoseconds since the epoch.
+     */
+    public static long toEpochNanos(final LocalDateTime utc) {
+        return utc.toEpochSecond(ZoneOffset.UTC) * NANOS_PER_SECOND + utc.getNano();
+    }
+
+    /**
+     * A reading of the system clock together with the monotonic timer.
+     */
+    private static class Anchor {
+        private final long epochNanos;
+        private final long nanoTime;
+        /** Benignly racy: at worst the system clock is read a few times more often. */
+        private volatile long checkedAt;
+
+        Anchor(final long nanoTime) {
+            final Instant now = Instant.now();
+            this.epochNanos = now.getEpochSecond() * NANOS_PER_SECOND + now.getNano();
+            this.nanoTime = nanoTime;
+            this.checkedAt = nanoTime;
+        }
+    }
+}
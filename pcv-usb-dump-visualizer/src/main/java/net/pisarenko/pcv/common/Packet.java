@@ -20,6 +20,9 @@ import static java.lang.String.format;
  *  the bytes before converting to decimal. So 0x010F becomes 0x0F01 3841.
  */
 public class Packet {
+    /** Size of every packet on the wire. */
+    public static final int SIZE = 64;
+
     /** Payload that requests engine statistics, e.g. RPM, throttle, speed, gear... */
     private static final byte[] REQUEST_PACKET_PAYLOAD = new byte[]{
             (byte) 0x1b, (byte) 0x1c, (byte) 0x2a, (byte) 0x2e, (byte) 0xc5,
@@ -27,6 +30,8 @@ public class Packet {
             (byte) 0xe0, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00
     };
 
+    private static final int PAYLOAD_OFFSET = 8;
+
     /** Complete 64-byte packet. */
     private byte[] data;
     /** See {@link PacketDirection} */
@@ -59,6 +64,19 @@ public class Packet {
         return packet;
     }
 
+    /**
+     * Copies the packet a view points at, for when it has to outlive the view's buffer.
+     */
+    public static Packet createFromReceivedView(final PacketView view, final LocalDateTime timestamp) {
+        Packet packet = new Packet();
+        packet.data = new byte[SIZE];
+        view.copyTo(packet.data);
+        packet.direction = PacketDirection.UP;
+        packet.seq = 0;
+        packet.timestamp = timestamp;
+        return packet;
+    }
+
     public static Packet createSendPacket(final Command command, final byte[] payload) {
         Packet packet = new Packet();
         packet.data = new byte[64];
@@ -111,6 +129,13 @@ public class Packet {
         return out;
     }
 
+    /**
+     * Points the view at this packet's data without copying it.
+     */
+    public PacketView asView(final PacketView view) {
+        return view.wrap(data);
+    }
+
     public PacketDirection getDirection() {
         return direction;
     }
@@ -129,7 +154,7 @@ public class Packet {
     public byte[] getRawPayload() {
         final int length = getPayloadLength();
         byte[] payload = new byte[length];
-        System.arraycopy(data, 8, payload, 0, length);
+        System.arraycopy(data, PAYLOAD_OFFSET, payload, 0, length);
         return payload;
     }
 
@@ -137,14 +162,14 @@ public class Packet {
      * Returns a long by joining together all payload bytes. Note: may overflow!
      */
     public long getPayloadAsLong() {
-        return joinBytes(getRawPayload(), 0, getPayloadLength());
+        return joinBytes(data, PAYLOAD_OFFSET, getPayloadLength());
     }
 
     /**
      * Returns a long by joining together specified bytes in the payload. Note: may overflow!
      */
     public long getPayloadFragment(final int start, final int length) {
-        return joinBytes(getRawPayload(), start, length);
+        return joinBytes(data, PAYLOAD_OFFSET + start, length);
     }
 
     public LocalDateTime getTimestamp() {
@@ -2,15 +2,22 @@ package net.pisarenko.pcv.common;
 
 import com.google.common.collect.Lists;
 
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.lang.String.format;
 
@@ -18,11 +25,11 @@ import static java.lang.String.format;
  * Parse HHD Device Monitoring Studio text file output to reconstruct PCV USB messages.
  */
 public class PacketUtil {
-    private static final Pattern DATA_LINE_PATTERN = Pattern.compile("^.*(([0-9a-f][0-9a-f]\\s){16}+).*$");
-    private static final Pattern DATA_DIRECTION_DOWN_PATTERN = Pattern.compile("^.*Direction.*\"Down\".*$");
-    private static final Pattern DATA_DIRECTION_UP_PATTERN = Pattern.compile("^.*Direction.*\"Up\".*$");
-    private static final Pattern SEQ_PATTERN = Pattern.compile("^(\\d+)\\s+.*$");
-    private static final Pattern TIMESTAMP_PATTERN = Pattern.compile("^.*(\\d\\d\\.\\d\\d\\.\\d\\d\\d\\d\\s\\d\\d:\\d\\d:\\d\\d)\\s+$");
+    static final Pattern DATA_LINE_PATTERN = Pattern.compile("^.*(([0-9a-f][0-9a-f]\\s){16}+).*$");
+    static final Pattern DATA_DIRECTION_DOWN_PATTERN = Pattern.compile("^.*Direction.*\"Down\".*$");
+    static final Pattern DATA_DIRECTION_UP_PATTERN = Pattern.compile("^.*Direction.*\"Up\".*$");
+    static final Pattern SEQ_PATTERN = Pattern.compile("^(\\d+)\\s+.*$");
+    static final Pattern TIMESTAMP_PATTERN = Pattern.compile("^.*(\\d\\d\\.\\d\\d\\.\\d\\d\\d\\d\\s\\d\\d:\\d\\d:\\d\\d)\\s+$");
 
     private PacketUtil() {}
 
@@ -35,61 +42,44 @@ public class PacketUtil {
     }
 
     public static List<Packet> parseUSBPackets(final String path) throws Exception {
-        final List<Packet> packets = Lists.newArrayList();
-
-        int dataLineCount = 0;
-        byte[] messageData = new byte[64];
-        Packet.PacketDirection direction = Packet.PacketDirection.DOWN;
-        int seq = 0;
-        String timestamp = null;
-
-        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_16LE)) {
-            Matcher dataLineMatcher = DATA_LINE_PATTERN.matcher(line);
-            Matcher upDirectionMatcher = DATA_DIRECTION_UP_PATTERN.matcher(line);
-            Matcher downDirectionMatcher = DATA_DIRECTION_DOWN_PATTERN.matcher(line);
-            Matcher seqMatcher = SEQ_PATTERN.matcher(line);
-            Matcher timestampMatcher = TIMESTAMP_PATTERN.matcher(line);
-
-            if (upDirectionMatcher.matches()) {
-                direction = Packet.PacketDirection.UP;
-            } else if (downDirectionMatcher.matches()) {
-                direction = Packet.PacketDirection.DOWN;
-            }
-
-            if (seqMatcher.matches()) {
-                seq = Integer.parseInt(seqMatcher.group(1));
-            }
-
-            if (timestampMatcher.matches()) {
-                timestamp = timestampMatcher.group(1);
-            }
-
-            if (dataLineMatcher.matches()) {
-                byte[] data = intsToBytes(Arrays.stream(dataLineMatcher.group(1).split("\\s"))
-                        .mapToInt(s -> Integer.parseInt(s, 16)).toArray());
-                System.arraycopy(data, 0, messageData, dataLineCount * 16, 16);
-                dataLineCount++;
-                if (dataLineCount == 4) {
-                    final Packet packet = Packet.createFromDumpData(messageData, direction, seq, parseTimestamp(timestamp));
-                    packets.add(packet);
-                    dataLineCount = 0;
-                    messageData = new byte[64];
-                }
-            }
+        try (Stream<Packet> packets = streamUSBPackets(Paths.get(path))) {
+            return packets.collect(Collectors.toCollection(Lists::newArrayList));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+    }
+
+    /**
+     * Same as {@link #parseUSBPackets(String)}, but large dumps are parsed in chunks on all cores.
+     */
+    public static List<Packet> parseUSBPacketsParallel(final String path) throws IOException {
+        return parseUSBPacketsParallel(Paths.get(path), ForkJoinPool.commonPool());
+    }
 
-        return packets;
+    public static List<Packet> parseUSBPacketsParallel(final Path path, final ForkJoinPool pool) throws IOException {
+        return new ParallelDumpParser(path, pool).parse();
     }
 
-    private static byte[] intsToBytes(final int[] ints) {
-        byte[] bytes = new byte[ints.length];
-        for (int i = 0; i < ints.length; i++) {
-            bytes[i] = (byte)ints[i];
+    /**
+     * Same packets as {@link #parseUSBPackets(String)}, read lazily while the stream is consumed, so that dumps of any
+     * size can be processed in constant memory. The stream must be closed; I/O errors are thrown as
+     * {@link UncheckedIOException}.
+     */
+    public static Stream<Packet> streamUSBPackets(final Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        final UsbDumpScanner scanner;
+        try {
+            scanner = new UsbDumpScanner(channel, 0, channel.size(), false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
-        return bytes;
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(scanner, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(scanner::close);
     }
 
-    private static LocalDateTime parseTimestamp(final String timestamp) {
+    static LocalDateTime parseTimestamp(final String timestamp) {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
         return LocalDateTime.parse(timestamp, formatter);
     }
@@ -0,0 +1,117 @@
+package net.pisarenko.pcv.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Flyweight read-only view over a 64 byte PCV packet (layout in {@link Packet}) that lives in somebody else's buffer,
+ * typically a receive buffer that is reused for every transfer. All accessors read straight from the buffer with
+ * absolute little endian reads, nothing is copied or allocated. The view is only valid until the buffer is
+ * overwritten; use {@link Packet#createFromReceivedData} to keep a packet.
+ *
+ * A view is meant to be created once and re-pointed with {@link #wrap}. Not thread safe.
+ */
+public class PacketView {
+    private static final int ID_OFFSET = 0;
+    private static final int COMMAND_OFFSET = 4;
+    private static final int PAYLOAD_LENGTH_OFFSET = 6;
+    private static final int PAYLOAD_OFFSET = 8;
+
+    private ByteBuffer buffer;
+    /** Array behind {@link #buffer} when wrapping a byte array, so re-wrapping the same array is free. */
+    private byte[] array;
+    /** Where the packet starts within the buffer. */
+    private int base;
+
+    /**
+     * Points the view at a packet starting at the given position of the buffer. Switches the buffer to little endian.
+     */
+    public PacketView wrap(final ByteBuffer buffer, final int base) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.array = null;
+        this.base = base;
+        return this;
+    }
+
+    public PacketView wrap(final byte[] data) {
+        if (data != array) {
+            buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            array = data;
+        }
+        base = 0;
+        return this;
+    }
+
+    /**
+     * Same value as {@link Packet#getId()}, i.e. the sign extended 32 bit ID.
+     */
+    public long getId() {
+        return buffer.getInt(base + ID_OFFSET);
+    }
+
+    public int getCommandValue() {
+        return buffer.getShort(base + COMMAND_OFFSET) & 0xFFFF;
+    }
+
+    public Command getCommand() {
+        return Command.fromInt(getCommandValue());
+    }
+
+    public int getPayloadLength() {
+        return buffer.getShort(base + PAYLOAD_LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    public int getPayloadUnsignedByte(final int index) {
+        return buffer.get(base + PAYLOAD_OFFSET + index) & 0xFF;
+    }
+
+    public int getPayloadUnsignedShort(final int index) {
+        return buffer.getShort(base + PAYLOAD_OFFSET + index) & 0xFFFF;
+    }
+
+    public long getPayloadUnsignedInt(final int index) {
+        return buffer.getInt(base + PAYLOAD_OFFSET + index) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Same as {@link Packet#getPayloadFragment(int, int)}, including its overflow behaviour beyond 4 bytes.
+     */
+    public long getPayloadFragment(final int start, final int length) {
+        switch (length) {
+            case 1:
+                return getPayloadUnsignedByte(start);
+            case 2:
+                return getPayloadUnsignedShort(start);
+            case 4:
+                return buffer.getInt(base + PAYLOAD_OFFSET + start);
+            default:
+                long out = 0;
+                for (int i = 0; i < length; i++) {
+                    out |= getPayloadUnsignedByte(start + i) << (i * 8);
+                }
+                return out;
+        }
+    }
+
+    /**
+     * Copies the whole packet into the destination, which must hold at least {@link Packet#SIZE} bytes.
+     */
+    public void copyTo(final byte[] destination) {
+        for (int i = 0; i < Packet.SIZE; i++) {
+            destination[i] = buffer.get(base + i);
+        }
+    }
+
+    /**
+     * Appends the whole packet to the destination buffer.
+     */
+    public void copyTo(final ByteBuffer destination) {
+        if (array != null) {
+            destination.put(array, base, Packet.SIZE);
+            return;
+        }
+        for (int i = 0; i < Packet.SIZE; i++) {
+            destination.put(buffer.get(base + i));
+        }
+    }
+}
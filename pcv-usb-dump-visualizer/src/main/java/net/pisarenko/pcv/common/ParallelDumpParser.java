@@ -0,0 +1,180 @@
+package net.pisarenko.pcv.common;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses a USB dump on a fork/join pool, with the same result as parsing it from start to end.
+ *
+ * The file is cut into chunks at record header lines (lines starting with a sequence number) and every chunk is
+ * scanned speculatively, as if the parser state was reset at its start. Going through the chunks in file order
+ * afterwards, a chunk is accepted if the state left by the previous chunk could not have changed its packets; otherwise
+ * (e.g. a record without a direction line right at the cut) it is scanned again with the real state. The packets end
+ * up in file order, which is sequence number order for any dump written by HHD.
+ */
+class ParallelDumpParser {
+    /** Don't bother cutting chunks smaller than this. */
+    private static final long DEFAULT_MIN_CHUNK_BYTES = 4 * 1024 * 1024;
+    /** Chunks per pool thread, so that threads that finish early can steal work. */
+    private static final int CHUNKS_PER_THREAD = 4;
+    /** How much to read at a time when looking for a header line. */
+    private static final int SEARCH_WINDOW_BYTES = 64 * 1024;
+
+    private final Path path;
+    private final ForkJoinPool pool;
+    private final long minChunkBytes;
+
+    ParallelDumpParser(final Path path, final ForkJoinPool pool) {
+        this(path, pool, DEFAULT_MIN_CHUNK_BYTES);
+    }
+
+    ParallelDumpParser(final Path path, final ForkJoinPool pool, final long minChunkBytes) {
+        this.path = path;
+        this.pool = pool;
+        this.minChunkBytes = minChunkBytes;
+    }
+
+    List<Packet> parse() throws IOException {
+        final Chunk[] chunks = split();
+        try {
+            pool.invoke(new ScanChunks(chunks, 0, chunks.length));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        final List<Packet> packets = Lists.newArrayList();
+        UsbDumpScanner.State state = UsbDumpScanner.State.INITIAL;
+        for (Chunk chunk : chunks) {
+            if (chunk.scanner.dependsOnInitialState() || !state.isBetweenPackets()) {
+                // redo sequentially, picking up where the previous chunk left off
+                chunk.packets = Lists.newArrayList();
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    chunk.scanner = new UsbDumpScanner(channel, chunk.start, chunk.end - chunk.start, state);
+                    chunk.scanner.forEachRemaining(chunk.packets::add);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            } else if (chunk.failure instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) chunk.failure).getCause();
+            } else if (chunk.failure != null) {
+                throw chunk.failure;
+            }
+            packets.addAll(chunk.packets);
+            state = chunk.scanner.getState(state);
+        }
+        return packets;
+    }
+
+    /**
+     * Cuts the file into chunks that start at record header lines.
+     */
+    private Chunk[] split() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final int count = (int) Math.max(1, Math.min(size / minChunkBytes,
+                    (long) pool.getParallelism() * CHUNKS_PER_THREAD));
+
+            final List<Chunk> chunks = Lists.newArrayList();
+            long start = 0;
+            for (int i = 1; i < count; i++) {
+                // UTF-16LE: characters start at even offsets
+                final long target = (size / count * i) & ~1L;
+                if (target <= start) {
+                    continue;
+                }
+                final long cut = findHeaderLine(channel, target);
+                if (cut < 0) {
+                    break;
+                }
+                if (cut > start) {
+                    chunks.add(new Chunk(start, cut));
+                    start = cut;
+                }
+            }
+            chunks.add(new Chunk(start, size));
+            return chunks.toArray(new Chunk[chunks.size()]);
+        }
+    }
+
+    /**
+     * Returns the offset of the first line at or after {@code from} that starts with a digit, or -1.
+     */
+    private static long findHeaderLine(final FileChannel channel, final long from) throws IOException {
+        final ByteBuffer window = ByteBuffer.allocate(SEARCH_WINDOW_BYTES);
+        long windowStart = from;
+        while (true) {
+            window.clear();
+            final int read = channel.read(window, windowStart);
+            if (read < 4) {
+                return -1;
+            }
+            for (int i = 0; i + 3 < read; i += 2) {
+                final char c = (char) ((window.get(i) & 0xFF) | (window.get(i + 1) & 0xFF) << 8);
+                final char following = (char) ((window.get(i + 2) & 0xFF) | (window.get(i + 3) & 0xFF) << 8);
+                if ((c == '\n' || c == '\r') && following >= '0' && following <= '9') {
+                    return windowStart + i + 2;
+                }
+            }
+            // look at the last character again with what follows it
+            windowStart += (read & ~1) - 2;
+        }
+    }
+
+    private class ScanChunks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        ScanChunks(final Chunk[] chunks, final int from, final int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ScanChunks(chunks, from, middle), new ScanChunks(chunks, middle, to));
+                return;
+            }
+
+            final Chunk chunk = chunks[from];
+            chunk.packets = Lists.newArrayList();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                // the first chunk starts the dump, so nothing is speculative about it
+                chunk.scanner = new UsbDumpScanner(channel, chunk.start, chunk.end - chunk.start, chunk.start > 0);
+                chunk.scanner.forEachRemaining(chunk.packets::add);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                // only counts if the chunk turns out not to need the real state
+                chunk.failure = e;
+            }
+        }
+    }
+
+    private static class Chunk {
+        private final long start;
+        private final long end;
+        private UsbDumpScanner scanner;
+        private List<Packet> packets;
+        private RuntimeException failure;
+
+        Chunk(final long start, final long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package net.pisarenko.pcv.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.MalformedInputException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+
+/**
+ * Reads packets from an HHD Device Monitoring Studio text dump (UTF-16LE) one at a time, in constant memory.
+ *
+ * Instead of decoding whole lines into strings and running regular expressions over them, the bytes are decoded into a
+ * reused char buffer and every line is checked by hand against the same patterns as {@link PacketUtil} used to apply,
+ * with the same results. Lines with characters that the patterns treat as line terminators (U+0085, U+2028, U+2029)
+ * are rare enough to be handed to the regular expressions.
+ *
+ * Not thread safe. Must be closed.
+ */
+class UsbDumpScanner implements Iterator<Packet>, Closeable {
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int DATA_BYTES_PER_LINE = 16;
+    /** "hh " repeated for every byte of a data line. */
+    private static final int DATA_CHARS_PER_LINE = DATA_BYTES_PER_LINE * 3;
+    /** "dd.MM.yyyy HH:mm:ss" */
+    private static final int TIMESTAMP_CHARS = 19;
+    private static final char[] DIRECTION = "Direction".toCharArray();
+    private static final char[] UP = "\"Up\"".toCharArray();
+    private static final char[] DOWN = "\"Down\"".toCharArray();
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    /** Bytes of the scanned range that have not been read from the channel yet. */
+    private long unread;
+    private boolean endOfInput;
+
+    private char[] line = new char[256];
+    private int lineLength;
+    /** Whether the current line contains a character that only the regular expressions handle correctly. */
+    private boolean lineNeedsRegex;
+    /** The high surrogate of a pair whose low surrogate has not been read yet, or 0. */
+    private char highSurrogate;
+
+    private int dataLineCount;
+    private byte[] messageData = new byte[Packet.SIZE];
+    private Packet.PacketDirection direction = Packet.PacketDirection.DOWN;
+    private int seq;
+    private String timestamp;
+    private String parsedTimestamp;
+    private LocalDateTime parsedTimestampValue;
+
+    /** Speculative mode: the state at the start of the range is not known, see {@link #dependsOnInitialState()}. */
+    private final boolean speculative;
+    private boolean directionSet;
+    private boolean seqSet;
+    private boolean timestampSet;
+    private boolean dependsOnInitialState;
+
+    private Packet next;
+
+    /**
+     * Scans {@code length} bytes of the channel starting at {@code position}, which must be at a line start, with the
+     * given parser state as left behind by whatever comes before the range.
+     */
+    UsbDumpScanner(final FileChannel channel, final long position, final long length, final State initial)
+            throws IOException {
+        this(channel, position, length, false);
+        direction = initial.direction;
+        seq = initial.seq;
+        timestamp = initial.timestamp;
+        dataLineCount = initial.dataLineCount;
+        messageData = initial.messageData.clone();
+    }
+
+    /**
+     * Scans {@code length} bytes of the channel starting at {@code position}, which must be at a line start. Unless
+     * speculative, the range is treated as the start of a dump.
+     *
+     * A speculative scan assumes the range starts with a new record, and stops at the first packet that would depend
+     * on state from before the range: a direction, sequence number or timestamp not set within the range.
+     */
+    UsbDumpScanner(final FileChannel channel, final long position, final long length, final boolean speculative)
+            throws IOException {
+        this.channel = channel;
+        this.unread = length;
+        this.speculative = speculative;
+        channel.position(position);
+        buffer.flip();
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null && !dependsOnInitialState && readLine()) {
+                next = processLine();
+            }
+            return next != null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Packet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Packet packet = next;
+        next = null;
+        return packet;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Whether a speculative scan stopped because the rest of the range can only be parsed knowing the state before it.
+     */
+    boolean dependsOnInitialState() {
+        return dependsOnInitialState;
+    }
+
+    /**
+     * The parser state at the current position. For a speculative scan, parts not set within the range are taken from
+     * the state before the range.
+     */
+    State getState(final State before) {
+        return new State(
+                !speculative || directionSet ? direction : before.direction,
+                !speculative || seqSet ? seq : before.seq,
+                !speculative || timestampSet ? timestamp : before.timestamp,
+                dataLineCount, messageData.clone());
+    }
+
+    /**
+     * Fills {@link #line} with the next line, without its terminator. Returns false at the end of the input.
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        lineNeedsRegex = false;
+        while (true) {
+            if (buffer.remaining() < 2 && !fill()) {
+                if (buffer.hasRemaining() || highSurrogate != 0) {
+                    throw new MalformedInputException(1);
+                }
+                return lineLength > 0;
+            }
+            final char c = (char) ((buffer.get() & 0xFF) | (buffer.get() & 0xFF) << 8);
+
+            if (Character.isHighSurrogate(c)) {
+                if (highSurrogate != 0) {
+                    throw new MalformedInputException(2);
+                }
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                if (highSurrogate == 0) {
+                    throw new MalformedInputException(2);
+                }
+                highSurrogate = 0;
+            } else if (highSurrogate != 0) {
+                throw new MalformedInputException(2);
+            }
+
+            if (c == '\n' || c == '\r') {
+                // \r\n ends up as an extra empty line, which matches nothing
+                return true;
+            }
+            if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                lineNeedsRegex = true;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = c;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        buffer.compact();
+        if (buffer.remaining() > unread) {
+            buffer.limit(buffer.position() + (int) unread);
+        }
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            unread -= read;
+        }
+        if (unread <= 0 || buffer.hasRemaining()) {
+            endOfInput = true;
+        }
+        buffer.flip();
+        return buffer.remaining() >= 2;
+    }
+
+    /**
+     * Applies the line to the parser state, same as {@link PacketUtil} did, and returns the packet it completes.
+     */
+    private Packet processLine() {
+        if (lineNeedsRegex) {
+            return processLineWithRegex(new String(line, 0, lineLength));
+        }
+
+        final int directionAt = indexOf(DIRECTION, 0);
+        if (directionAt >= 0 && indexOf(UP, directionAt + DIRECTION.length) >= 0) {
+            direction = Packet.PacketDirection.UP;
+            directionSet = true;
+        } else if (directionAt >= 0 && indexOf(DOWN, directionAt + DIRECTION.length) >= 0) {
+            direction = Packet.PacketDirection.DOWN;
+            directionSet = true;
+        }
+
+        int digits = 0;
+        while (digits < lineLength && isDigit(line[digits])) {
+            digits++;
+        }
+        if (digits > 0 && digits < lineLength && isWhitespace(line[digits])) {
+            seq = parseSeq(digits);
+            seqSet = true;
+        }
+
+        int trailingWhitespace = lineLength;
+        while (trailingWhitespace > 0 && isWhitespace(line[trailingWhitespace - 1])) {
+            trailingWhitespace--;
+        }
+        if (trailingWhitespace < lineLength && isTimestamp(trailingWhitespace - TIMESTAMP_CHARS)) {
+            timestamp = new String(line, trailingWhitespace - TIMESTAMP_CHARS, TIMESTAMP_CHARS);
+            timestampSet = true;
+        }
+
+        // the pattern's leading .* is greedy, so it is the rightmost run of 16 bytes that counts
+        for (int start = lineLength - DATA_CHARS_PER_LINE; start >= 0; start--) {
+            if (isDataRun(start)) {
+                for (int i = 0; i < DATA_BYTES_PER_LINE; i++) {
+                    final int at = start + i * 3;
+                    messageData[dataLineCount * DATA_BYTES_PER_LINE + i] =
+                            (byte) (hexValue(line[at]) << 4 | hexValue(line[at + 1]));
+                }
+                return completeDataLine();
+            }
+        }
+        return null;
+    }
+
+    private Packet processLineWithRegex(final String text) {
+        if (PacketUtil.DATA_DIRECTION_UP_PATTERN.matcher(text).matches()) {
+            direction = Packet.PacketDirection.UP;
+            directionSet = true;
+        } else if (PacketUtil.DATA_DIRECTION_DOWN_PATTERN.matcher(text).matches()) {
+            direction = Packet.PacketDirection.DOWN;
+            directionSet = true;
+        }
+
+        final Matcher seqMatcher = PacketUtil.SEQ_PATTERN.matcher(text);
+        if (seqMatcher.matches()) {
+            seq = Integer.parseInt(seqMatcher.group(1));
+            seqSet = true;
+        }
+
+        final Matcher timestampMatcher = PacketUtil.TIMESTAMP_PATTERN.matcher(text);
+        if (timestampMatcher.matches()) {
+            timestamp = timestampMatcher.group(1);
+            timestampSet = true;
+        }
+
+        final Matcher dataLineMatcher = PacketUtil.DATA_LINE_PATTERN.matcher(text);
+        if (dataLineMatcher.matches()) {
+            final String[] hex = dataLineMatcher.group(1).split("\\s");
+            for (int i = 0; i < DATA_BYTES_PER_LINE; i++) {
+                messageData[dataLineCount * DATA_BYTES_PER_LINE + i] = (byte) Integer.parseInt(hex[i], 16);
+            }
+            return completeDataLine();
+        }
+        return null;
+    }
+
+    private Packet completeDataLine() {
+        dataLineCount++;
+        if (dataLineCount < Packet.SIZE / DATA_BYTES_PER_LINE) {
+            return null;
+        }
+        if (speculative && !(directionSet && seqSet && timestampSet)) {
+            dependsOnInitialState = true;
+            return null;
+        }
+        final Packet packet = Packet.createFromDumpData(messageData, direction, seq, timestampValue());
+        dataLineCount = 0;
+        return packet;
+    }
+
+    /**
+     * The current timestamp, parsed only when it changed since the previous packet.
+     */
+    private LocalDateTime timestampValue() {
+        if (timestamp == null || !timestamp.equals(parsedTimestamp)) {
+            parsedTimestampValue = PacketUtil.parseTimestamp(timestamp);
+            parsedTimestamp = timestamp;
+        }
+        return parsedTimestampValue;
+    }
+
+    private int parseSeq(final int digits) {
+        if (digits > 9) {
+            // may overflow, let parseInt decide
+            return Integer.parseInt(new String(line, 0, digits));
+        }
+        int value = 0;
+        for (int i = 0; i < digits; i++) {
+            value = value * 10 + line[i] - '0';
+        }
+        return value;
+    }
+
+    private int indexOf(final char[] needle, final int from) {
+        outer:
+        for (int i = from; i <= lineLength - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (line[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks for {@code \d\d\.\d\d\.\d\d\d\d\s\d\d:\d\d:\d\d} at the given position.
+     */
+    private boolean isTimestamp(final int start) {
+        if (start < 0) {
+            return false;
+        }
+        final char[] l = line;
+        return isDigit(l[start]) && isDigit(l[start + 1]) && l[start + 2] == '.'
+                && isDigit(l[start + 3]) && isDigit(l[start + 4]) && l[start + 5] == '.'
+                && isDigit(l[start + 6]) && isDigit(l[start + 7]) && isDigit(l[start + 8]) && isDigit(l[start + 9])
+                && isWhitespace(l[start + 10])
+                && isDigit(l[start + 11]) && isDigit(l[start + 12]) && l[start + 13] == ':'
+                && isDigit(l[start + 14]) && isDigit(l[start + 15]) && l[start + 16] == ':'
+                && isDigit(l[start + 17]) && isDigit(l[start + 18]);
+    }
+
+    /**
+     * Checks for {@code ([0-9a-f][0-9a-f]\s){16}} at the given position.
+     */
+    private boolean isDataRun(final int start) {
+        for (int i = 0; i < DATA_BYTES_PER_LINE; i++) {
+            final int at = start + i * 3;
+            if (hexValue(line[at]) < 0 || hexValue(line[at + 1]) < 0 || !isWhitespace(line[at + 2])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Same as {@code \s} in the patterns: space, tab, line feed, vertical tab, form feed or carriage return.
+     */
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Value of a lower case hex digit, or -1.
+     */
+    private static int hexValue(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * What the parser carries over from one line to the next.
+     */
+    static class State {
+        static final State INITIAL = new State(Packet.PacketDirection.DOWN, 0, null, 0, new byte[Packet.SIZE]);
+
+        private final Packet.PacketDirection direction;
+        private final int seq;
+        private final String timestamp;
+        private final int dataLineCount;
+        private final byte[] messageData;
+
+        State(final Packet.PacketDirection direction, final int seq, final String timestamp, final int dataLineCount,
+              final byte[] messageData) {
+            this.direction = direction;
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.dataLineCount = dataLineCount;
+            this.messageData = messageData;
+        }
+
+        /**
+         * Whether a range that starts in this state can be parsed as if it started a new record.
+         */
+        boolean isBetweenPackets() {
+            return dataLineCount == 0;
+        }
+    }
+}
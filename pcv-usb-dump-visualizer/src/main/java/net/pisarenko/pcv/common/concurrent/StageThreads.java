@@ -0,0 +1,66 @@
+package net.pisarenko.pcv.common.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads stages run on: virtual threads where the runtime has them (Java 21), platform threads otherwise.
+ * Virtual threads are looked up reflectively so that the code still builds and runs on Java 8.
+ */
+final class StageThreads {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StageThreads.class);
+
+    /** Null when the runtime has no virtual threads. */
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+    private static final Method BUILDER_NAME = findMethod(builderClass(), "name", String.class);
+    private static final Method BUILDER_UNSTARTED = findMethod(builderClass(), "unstarted", Runnable.class);
+
+    private StageThreads() {}
+
+    static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null && BUILDER_NAME != null && BUILDER_UNSTARTED != null;
+    }
+
+    /**
+     * Returns a factory for threads with the given name, virtual ones if asked for and supported. Platform threads are
+     * not daemons, like the bare threads the stages used to run on.
+     */
+    static ThreadFactory factory(final String name, final boolean virtual) {
+        if (virtual && isVirtualSupported()) {
+            return task -> newVirtualThread(name, task);
+        }
+        return task -> new Thread(task, name);
+    }
+
+    private static Thread newVirtualThread(final String name, final Runnable task) {
+        try {
+            final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warn("Failed to create a virtual thread, using a platform thread", e);
+            return new Thread(task, name);
+        }
+    }
+
+    private static Class<?> builderClass() {
+        try {
+            return Class.forName("java.lang.Thread$Builder");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(final Class<?> type, final String name, final Class<?>... parameterTypes) {
+        if (type == null) {
+            return null;
+        }
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package net.pisarenko.pcv.common.concurrent;
+
+import net.pisarenko.pcv.common.metrics.Counter;
+import net.pisarenko.pcv.common.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the stages of a pipeline (receive, decode, publish...), each on a thread of its own, and keeps them running:
+ * a stage that fails or returns is restarted on its own thread after a backoff, without touching the other stages.
+ *
+ * Stages are shut down in the order they were added, so that each one gets the chance to work off its input queue
+ * before it is interrupted: the producer stops first, then every consumer once its queue is empty or time is up.
+ * Stages are expected to return when interrupted.
+ *
+ * With virtual threads (Java 21 and later) blocking stages cost next to nothing; on older runtimes platform threads
+ * are used instead.
+ */
+public class Supervisor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Supervisor.class);
+
+    /** Wait this long before the first restart of a stage, doubling up to the max for repeated failures. */
+    private static final long MIN_RESTART_DELAY_MILLIS = 100;
+    private static final long MAX_RESTART_DELAY_MILLIS = 30000;
+    /** A stage that ran at least this long before failing starts over with the shortest delay. */
+    private static final long STABLE_RUN_MILLIS = 60000;
+    /** How often to check whether a stage's input queue is empty while shutting down. */
+    private static final long DRAIN_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final boolean virtualThreads;
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private volatile boolean stopping;
+    /** Null when restarts are not reported. */
+    private MetricsRegistry metrics;
+
+    /**
+     * @param virtualThreads run the stages on virtual threads if the runtime supports them
+     */
+    public Supervisor(final boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        if (virtualThreads && !StageThreads.isVirtualSupported()) {
+            LOGGER.info("Virtual threads are not available on Java " + System.getProperty("java.version")
+                    + ", using platform threads");
+        }
+    }
+
+    /**
+     * Reports how often each stage was restarted. Applies to stages started afterwards.
+     */
+    public void setMetrics(final MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts a stage that has no input queue, e.g. the one that produces data.
+     */
+    public void supervise(final String name, final Runnable task) {
+        supervise(name, task, null);
+    }
+
+    /**
+     * Starts a stage that consumes the given queue. On shutdown it keeps running until the queue is empty.
+     */
+    public void supervise(final String name, final Runnable task, final Collection<?> input) {
+        if (stopping) {
+            throw new IllegalStateException("Supervisor is shutting down");
+        }
+        final Counter restarts = metrics == null ? new Counter()
+                : metrics.withLabel("stage", name).counter("pcv_stage_restarts_total", "Times a stage was restarted");
+        final Stage stage = new Stage(name, task, input, restarts);
+        stage.thread = StageThreads.factory(name, virtualThreads).newThread(() -> runStage(stage));
+        stages.add(stage);
+        stage.thread.start();
+    }
+
+    /**
+     * Stops all stages, letting each consumer work off its queue first. Stages still running when the timeout is up are
+     * interrupted and left behind.
+     */
+    public void shutdown(final long timeout, final TimeUnit unit) {
+        stopping = true;
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Stage stage : stages) {
+            while (stage.input != null && !stage.input.isEmpty() && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(DRAIN_CHECK_NANOS);
+            }
+            if (stage.input != null && !stage.input.isEmpty()) {
+                LOGGER.warn("Stage " + stage.name + " stopped with " + stage.input.size() + " elements left");
+            }
+            stage.thread.interrupt();
+            try {
+                stage.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (stage.thread.isAlive()) {
+                LOGGER.warn("Stage " + stage.name + " did not stop in time");
+            }
+        }
+        LOGGER.info("All stages stopped");
+    }
+
+    /**
+     * Shuts down when the JVM does, e.g. on SIGTERM or Ctrl-C.
+     */
+    public void shutdownOnExit(final long timeout, final TimeUnit unit) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(timeout, unit), "supervisor-shutdown"));
+    }
+
+    /**
+     * Blocks until every stage has stopped. Needed with virtual threads, which do not keep the JVM alive.
+     */
+    public void awaitTermination() throws InterruptedException {
+        for (Stage stage : new ArrayList<>(stages)) {
+            stage.thread.join();
+        }
+    }
+
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    private void runStage(final Stage stage) {
+        long delayMillis = MIN_RESTART_DELAY_MILLIS;
+        while (!stopping) {
+            final long startedAt = System.nanoTime();
+            try {
+                stage.task.run();
+                if (stopping) {
+                    break;
+                }
+                LOGGER.warn("Stage " + stage.name + " returned unexpectedly, restarting in " + delayMillis + " ms");
+            } catch (VirtualMachineError e) {
+                // out of memory or stack: the JVM is in no state to carry on
+                throw e;
+            } catch (Throwable e) {
+                // an Error such as NoClassDefFoundError or AssertionError would otherwise end the stage for good
+                if (stopping) {
+                    break;
+                }
+                LOGGER.error("Stage " + stage.name + " failed, restarting in " + delayMillis + " ms", e);
+            }
+
+            if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) >= STABLE_RUN_MILLIS) {
+                delayMillis = MIN_RESTART_DELAY_MILLIS;
+            }
+            // a stage that swallowed the interrupt leaves the flag set; it must not cut the delay short
+            Thread.interrupted();
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            delayMillis = Math.min(delayMillis * 2, MAX_RESTART_DELAY_MILLIS);
+            stage.restarts.increment();
+        }
+        LOGGER.debug("Stage " + stage.name + " stopped");
+    }
+
+    private static class Stage {
+        private final String name;
+        private final Runnable task;
+        /** Null for a stage without an input queue. */
+        private final Collection<?> input;
+        private final Counter restarts;
+        private Thread thread;
+
+        Stage(final String name, final Runnable task, final Collection<?> input, final Counter restarts) {
+            this.name = name;
+            this.task = task;
+            this.input = input;
+            this.restarts = restarts;
+        }
+    }
+}
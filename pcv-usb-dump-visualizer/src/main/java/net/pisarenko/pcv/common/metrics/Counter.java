@@ -0,0 +1,22 @@
+package net.pisarenko.pcv.common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, cheap to increment from several threads.
+ */
+public class Counter {
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(final long n) {
+        count.add(n);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,121 @@
+package net.pisarenko.pcv.common.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes the metrics as read-only attributes of one MBean, for JConsole or VisualVM. Counters and gauges keep their
+ * names; a histogram {@code x_seconds} shows up as {@code x_count}, {@code x_mean_ms}, {@code x_p50_ms},
+ * {@code x_p99_ms} and {@code x_max_ms}. Labels are appended in braces, as in Prometheus.
+ */
+public class JmxMetrics implements DynamicMBean {
+    public static final String OBJECT_NAME = "net.pisarenko.pcv:type=Metrics";
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final String SECONDS_SUFFIX = "_seconds";
+
+    private final MetricsRegistry registry;
+
+    private JmxMetrics(final MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers the registry's metrics with the platform MBean server.
+     */
+    public static void register(final MetricsRegistry registry) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new JmxMetrics(registry), new ObjectName(OBJECT_NAME));
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final Object value = readAttributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final Map<String, Object> values = readAttributes();
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : readAttributes().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "PCV pipeline metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "The metrics have no operations");
+    }
+
+    private Map<String, Object> readAttributes() {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        registry.visit(new MetricsRegistry.MetricVisitor() {
+            @Override
+            public void counter(final String name, final String labels, final String help, final long value) {
+                values.put(attributeName(name, labels), value);
+            }
+
+            @Override
+            public void gauge(final String name, final String labels, final String help, final long value) {
+                values.put(attributeName(name, labels), value);
+            }
+
+            @Override
+            public void histogram(final String name, final String labels, final String help,
+                                  final LatencyHistogram histogram) {
+                final long[] percentiles = histogram.getValuesAtPercentiles(50, 99);
+                final String base = name.endsWith(SECONDS_SUFFIX)
+                        ? name.substring(0, name.length() - SECONDS_SUFFIX.length()) : name;
+                values.put(attributeName(base + "_count", labels), histogram.getCount());
+                values.put(attributeName(base + "_mean_ms", labels), histogram.getMean() / NANOS_PER_MILLI);
+                values.put(attributeName(base + "_p50_ms", labels), percentiles[0] / NANOS_PER_MILLI);
+                values.put(attributeName(base + "_p99_ms", labels), percentiles[1] / NANOS_PER_MILLI);
+                values.put(attributeName(base + "_max_ms", labels), histogram.getMax() / NANOS_PER_MILLI);
+            }
+        });
+        return values;
+    }
+
+    private static String attributeName(final String name, final String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+}
@@ -0,0 +1,119 @@
+package net.pisarenko.pcv.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations in nanoseconds, in the spirit of HdrHistogram: every power of two is split into linear
+ * buckets, so any value is kept with 3 % precision in a fixed 15 KB table. Recording is wait-free and allocates
+ * nothing, so it can sit on the hot path; reading walks the table and is meant for the occasional scrape.
+ */
+public class LatencyHistogram {
+    /** Values within a power of two are split into 2^(this - 1) buckets. */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    /** Enough buckets for any positive long. */
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration. Negative values, e.g. from a clock adjustment, count as 0.
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketIndex(value));
+        sum.add(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}.
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * Returns the value that the given percentage (0 to 100) of the recorded values do not exceed, or 0 if nothing was
+     * recorded yet.
+     */
+    public long getValueAtPercentile(final double percentile) {
+        return getValuesAtPercentiles(percentile)[0];
+    }
+
+    /**
+     * Like {@link #getValueAtPercentile(double)} for several percentiles, in ascending order, from one pass over a
+     * consistent copy of the table.
+     */
+    public long[] getValuesAtPercentiles(final double... percentiles) {
+        final long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+
+        final long[] values = new long[percentiles.length];
+        if (count == 0) {
+            return values;
+        }
+        final long maxValue = getMax();
+        long seen = 0;
+        int bucket = -1;
+        for (int p = 0; p < percentiles.length; p++) {
+            final long target = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * count));
+            while (seen < target && bucket < BUCKET_COUNT - 1) {
+                seen += snapshot[++bucket];
+            }
+            values[p] = Math.min(highestEquivalentValue(Math.max(bucket, 0)), maxValue);
+        }
+        return values;
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int magnitude = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return magnitude * SUB_BUCKET_HALF + (int) (value >>> magnitude);
+    }
+
+    static long highestEquivalentValue(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int magnitude = index / SUB_BUCKET_HALF - 1;
+        final long subBucket = index - magnitude * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+}
@@ -0,0 +1,117 @@
+package net.pisarenko.pcv.common.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of a running pipeline by name, for the exporters ({@link JmxMetrics}, {@link PrometheusEndpoint}).
+ * Names follow the Prometheus conventions: {@code pcv_} prefix, base units, {@code _total} for counters. Asking for
+ * an existing counter or histogram returns it, so that several components can share one.
+ *
+ * A registry {@link #withLabel labelled} e.g. with a device shares the metrics of its parent but keeps its own
+ * instances of each, so that every device of a multi-device setup is reported separately.
+ */
+public class MetricsRegistry {
+    /** By family name and labels, separated by a space so that a family sorts as one block. */
+    private final ConcurrentNavigableMap<String, Metric> metrics;
+    /** Prometheus style, e.g. {@code device="1-2"}; empty for none. */
+    private final String labels;
+
+    public MetricsRegistry() {
+        this(new ConcurrentSkipListMap<>(), "");
+    }
+
+    private MetricsRegistry(final ConcurrentNavigableMap<String, Metric> metrics, final String labels) {
+        this.metrics = metrics;
+        this.labels = labels;
+    }
+
+    /**
+     * Returns a view of this registry whose metrics carry one more label.
+     */
+    public MetricsRegistry withLabel(final String name, final String value) {
+        final String label = name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        return new MetricsRegistry(metrics, labels.isEmpty() ? label : labels + "," + label);
+    }
+
+    public Counter counter(final String name, final String help) {
+        return (Counter) metrics.computeIfAbsent(key(name), k -> new Metric(name, labels, help, new Counter())).value;
+    }
+
+    /**
+     * A histogram of durations, recorded in nanoseconds and exported in seconds.
+     */
+    public LatencyHistogram histogram(final String name, final String help) {
+        return (LatencyHistogram) metrics.computeIfAbsent(
+                key(name), k -> new Metric(name, labels, help, new LatencyHistogram())).value;
+    }
+
+    /**
+     * A value that is read when the metrics are exported, e.g. a queue size. Replaces a gauge of the same name.
+     */
+    public void gauge(final String name, final String help, final LongSupplier value) {
+        metrics.put(key(name), new Metric(name, labels, help, value));
+    }
+
+    /**
+     * Returns the current value of a counter or gauge of this registry, or 0 if there is none, e.g. for a tool that
+     * runs a pipeline and checks its outcome.
+     */
+    public long getValue(final String name) {
+        final Metric metric = metrics.get(key(name));
+        if (metric == null) {
+            return 0;
+        } else if (metric.value instanceof Counter) {
+            return ((Counter) metric.value).get();
+        } else if (metric.value instanceof LongSupplier) {
+            return ((LongSupplier) metric.value).getAsLong();
+        }
+        throw new IllegalArgumentException(name + " is a histogram");
+    }
+
+    /**
+     * Passes every metric to the visitor, ordered by name and labels, whatever this registry's own labels are.
+     */
+    void visit(final MetricVisitor visitor) {
+        for (Metric metric : metrics.values()) {
+            if (metric.value instanceof Counter) {
+                visitor.counter(metric.name, metric.labels, metric.help, ((Counter) metric.value).get());
+            } else if (metric.value instanceof LatencyHistogram) {
+                visitor.histogram(metric.name, metric.labels, metric.help, (LatencyHistogram) metric.value);
+            } else {
+                visitor.gauge(metric.name, metric.labels, metric.help, ((LongSupplier) metric.value).getAsLong());
+            }
+        }
+    }
+
+    private String key(final String name) {
+        return name + " " + labels;
+    }
+
+    /**
+     * Gets the metrics; labels are empty or Prometheus style.
+     */
+    interface MetricVisitor {
+        void counter(String name, String labels, String help, long value);
+
+        void gauge(String name, String labels, String help, long value);
+
+        void histogram(String name, String labels, String help, LatencyHistogram histogram);
+    }
+
+    private static class Metric {
+        private final String name;
+        private final String labels;
+        private final String help;
+        private final Object value;
+
+        Metric(final String name, final String labels, final String help, final Object value) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
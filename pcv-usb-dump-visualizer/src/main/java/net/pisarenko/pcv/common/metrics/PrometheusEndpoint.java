@@ -0,0 +1,108 @@
+package net.pisarenko.pcv.common.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Serves the metrics in the Prometheus text format at {@code http://localhost:<port>/metrics}. Histograms are exported
+ * as summaries. Only listens on the loopback interface; scrape it through an SSH tunnel or a local agent.
+ */
+public class PrometheusEndpoint {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final MetricsRegistry registry;
+    private HttpServer server;
+
+    public PrometheusEndpoint(final MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void start(final int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final byte[] body = format(registry).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static String format(final MetricsRegistry registry) {
+        final StringBuilder text = new StringBuilder();
+        registry.visit(new MetricsRegistry.MetricVisitor() {
+            /** The family whose HELP and TYPE were written last; labelled metrics of a family come one after another. */
+            private String family;
+
+            @Override
+            public void counter(final String name, final String labels, final String help, final long value) {
+                header(name, help, "counter");
+                sample(name, labels, Long.toString(value));
+            }
+
+            @Override
+            public void gauge(final String name, final String labels, final String help, final long value) {
+                header(name, help, "gauge");
+                sample(name, labels, Long.toString(value));
+            }
+
+            @Override
+            public void histogram(final String name, final String labels, final String help,
+                                  final LatencyHistogram histogram) {
+                header(name, help, "summary");
+                final double[] percentiles = new double[QUANTILES.length];
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    percentiles[i] = QUANTILES[i] * 100;
+                }
+                final long[] values = histogram.getValuesAtPercentiles(percentiles);
+                final String separator = labels.isEmpty() ? "" : ",";
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    sample(name, labels + separator + "quantile=\"" + QUANTILES[i] + "\"", seconds(values[i]));
+                }
+                sample(name + "_sum", labels, seconds(histogram.getSum()));
+                sample(name + "_count", labels, Long.toString(histogram.getCount()));
+            }
+
+            private void header(final String name, final String help, final String type) {
+                if (name.equals(family)) {
+                    return;
+                }
+                family = name;
+                text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            }
+
+            private void sample(final String name, final String labels, final String value) {
+                text.append(name);
+                if (!labels.isEmpty()) {
+                    text.append('{').append(labels).append('}');
+                }
+                text.append(' ').append(value).append('\n');
+            }
+        });
+        return text.toString();
+    }
+
+    private static String seconds(final long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / NANOS_PER_SECOND);
+    }
+}
@@ -0,0 +1,15 @@
+package net.pisarenko.pcv.common.queue;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A queue that keeps taken elements until the consumer confirms they were delivered downstream, e.g. because it is
+ * backed by durable storage that should only be released after a successful publish.
+ */
+public interface AcknowledgingQueue<E> extends BlockingQueue<E> {
+    /**
+     * Confirms delivery of an element previously taken from this queue. Elements may be acknowledged in any order; the
+     * queue forgets an element only once every element taken before it has been acknowledged as well.
+     */
+    void acknowledge(E element);
+}
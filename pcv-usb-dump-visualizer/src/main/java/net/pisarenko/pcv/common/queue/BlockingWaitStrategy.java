@@ -0,0 +1,55 @@
+package net.pisarenko.pcv.common.queue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Sleeps on a condition variable until signalled. Uses no CPU while idle, which suits the edge device. The signalling
+ * side only takes the lock when somebody is actually waiting.
+ */
+public class BlockingWaitStrategy implements WaitStrategy {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    @Override
+    public boolean await(final BooleanSupplier condition, final long timeoutNanos) throws InterruptedException {
+        if (condition.getAsBoolean()) {
+            return true;
+        }
+
+        long remaining = timeoutNanos;
+        lock.lockInterruptibly();
+        try {
+            waiters.incrementAndGet();
+            try {
+                while (!condition.getAsBoolean()) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = changed.awaitNanos(remaining);
+                }
+                return true;
+            } finally {
+                waiters.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void signalAll() {
+        if (waiters.get() == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package net.pisarenko.pcv.common.queue;
+
+import com.google.common.collect.Lists;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Queue that holds at most one element per key: offering an element whose key is already pending replaces the pending
+ * one in place. A consumer that falls behind thus skips stale values instead of working through them, and always gets
+ * the latest state of every key at whatever rate it can take them. The size is bounded by the number of keys, so
+ * offering never blocks or fails.
+ *
+ * Keys are taken in the order they first became pending.
+ */
+public class ConflatingQueue<K, E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private final Function<? super E, ? extends K> keyFunction;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LinkedHashMap<K, E> pending = new LinkedHashMap<>();
+
+    /** Elements replaced by a newer one before they were taken. */
+    private long conflated;
+
+    public ConflatingQueue(final Function<? super E, ? extends K> keyFunction) {
+        this.keyFunction = checkNotNull(keyFunction);
+    }
+
+    @Override
+    public boolean offer(final E element) {
+        checkNotNull(element);
+        final K key = keyFunction.apply(element);
+        lock.lock();
+        try {
+            if (pending.replace(key, element) != null) {
+                conflated++;
+            } else {
+                pending.put(key, element);
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(final E element) {
+        offer(element);
+    }
+
+    @Override
+    public boolean offer(final E element, final long timeout, final TimeUnit unit) {
+        return offer(element);
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (pending.isEmpty()) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (pending.isEmpty()) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return pending.isEmpty() ? null : pending.values().iterator().next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> collection, final int maxElements) {
+        checkArgument(collection != this, "cannot drain to self");
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && !pending.isEmpty()) {
+                collection.add(removeFirst());
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the pending elements. Removal is not supported.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        lock.lock();
+        try {
+            final List<E> snapshot = Lists.newArrayList(pending.values());
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many elements were replaced by a newer one with the same key before they were taken.
+     */
+    public long getConflatedCount() {
+        lock.lock();
+        try {
+            return conflated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private E removeFirst() {
+        final Iterator<Map.Entry<K, E>> it = pending.entrySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        final E element = it.next().getValue();
+        it.remove();
+        return element;
+    }
+}
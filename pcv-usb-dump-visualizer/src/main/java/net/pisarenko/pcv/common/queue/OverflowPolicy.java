@@ -0,0 +1,13 @@
+package net.pisarenko.pcv.common.queue;
+
+/**
+ * What a bounded queue does when an element is offered while it is full.
+ */
+public enum OverflowPolicy {
+    /** Evict the oldest element to make room, like Guava's {@code EvictingQueue}. */
+    DROP_OLDEST,
+    /** Reject the new element. */
+    DROP_NEWEST,
+    /** Reject the new element on {@code offer}, wait for room on {@code put}. */
+    BLOCK
+}
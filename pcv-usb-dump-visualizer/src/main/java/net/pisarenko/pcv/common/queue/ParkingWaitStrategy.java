@@ -0,0 +1,37 @@
+package net.pisarenko.pcv.common.queue;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Re-checks the condition after parking for a short fixed interval. Producers never pay for a wake-up, consumers
+ * notice new data within one park interval.
+ */
+public class ParkingWaitStrategy implements WaitStrategy {
+    private final long parkNanos;
+
+    public ParkingWaitStrategy(final long parkNanos) {
+        this.parkNanos = parkNanos;
+    }
+
+    @Override
+    public boolean await(final BooleanSupplier condition, final long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        while (!condition.getAsBoolean()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(parkNanos, remaining));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void signalAll() {
+        // nothing to do, waiters poll
+    }
+}
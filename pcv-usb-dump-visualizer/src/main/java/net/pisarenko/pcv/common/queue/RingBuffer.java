@@ -0,0 +1,213 @@
+package net.pisarenko.pcv.common.queue;
+
+import com.google.common.collect.Lists;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounded lock-free queue for handing elements from one producer thread to one consumer thread.
+ *
+ * Head and tail are ever increasing sequence numbers, the slot of a sequence number is the number modulo capacity. The
+ * producer fills the slot and then publishes it by advancing the tail. The consumer claims the head slot with a CAS,
+ * which lets a {@link OverflowPolicy#DROP_OLDEST} producer evict from the head without a lock.
+ *
+ * Waiting consumers (and producers, with {@link OverflowPolicy#BLOCK}) are handled by the {@link WaitStrategy}.
+ *
+ * Not safe for more than one concurrent producer.
+ */
+public class RingBuffer<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final WaitStrategy waitStrategy;
+
+    /** Sequence number of the next element to take. */
+    private final AtomicLong head = new AtomicLong();
+    /** Sequence number of the next element to put. */
+    private final AtomicLong tail = new AtomicLong();
+    /** Elements lost to the overflow policy. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    public RingBuffer(final int capacity, final OverflowPolicy overflowPolicy, final WaitStrategy waitStrategy) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.capacity = capacity;
+        this.overflowPolicy = checkNotNull(overflowPolicy);
+        this.waitStrategy = checkNotNull(waitStrategy);
+    }
+
+    @Override
+    public boolean offer(final E element) {
+        checkNotNull(element);
+
+        final long t = tail.get();
+        while (t - head.get() >= capacity) {
+            if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    dropped.incrementAndGet();
+                }
+                return false;
+            }
+            final long h = head.get();
+            if (t - h >= capacity && head.compareAndSet(h, h + 1)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        slots.lazySet(index(t), element);
+        tail.set(t + 1);
+        waitStrategy.signalAll();
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        while (true) {
+            final long h = head.get();
+            if (h >= tail.get()) {
+                return null;
+            }
+            final int index = index(h);
+            final E element = slots.get(index);
+            if (head.compareAndSet(h, h + 1)) {
+                // the producer may already have reused the slot, only clear it if it still holds our element
+                slots.compareAndSet(index, element, null);
+                if (overflowPolicy == OverflowPolicy.BLOCK) {
+                    waitStrategy.signalAll();
+                }
+                return element;
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        final long h = head.get();
+        return h < tail.get() ? slots.get(index(h)) : null;
+    }
+
+    @Override
+    public void put(final E element) throws InterruptedException {
+        while (!offer(element)) {
+            if (overflowPolicy != OverflowPolicy.BLOCK) {
+                return;
+            }
+            waitStrategy.await(this::hasRoom, Long.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public boolean offer(final E element, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(element)) {
+            final long remaining = deadline - System.nanoTime();
+            if (overflowPolicy != OverflowPolicy.BLOCK || remaining <= 0) {
+                return false;
+            }
+            waitStrategy.await(this::hasRoom, remaining);
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E element;
+        while ((element = poll()) == null) {
+            waitStrategy.await(this::hasElements, Long.MAX_VALUE);
+        }
+        return element;
+    }
+
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E element;
+        while ((element = poll()) == null) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            waitStrategy.await(this::hasElements, remaining);
+        }
+        return element;
+    }
+
+    @Override
+    public int size() {
+        final long h = head.get();
+        final long size = tail.get() - h;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> collection, final int maxElements) {
+        checkArgument(collection != this, "cannot drain to self");
+        int count = 0;
+        E element;
+        while (count < maxElements && (element = poll()) != null) {
+            collection.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns a weakly consistent snapshot of the queued elements. Removal is not supported.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<E> snapshot = Lists.newArrayListWithCapacity(size());
+        final long t = tail.get();
+        for (long s = Math.max(head.get(), t - capacity); s < t; s++) {
+            final E element = slots.get(index(s));
+            if (element != null) {
+                snapshot.add(element);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns how many elements were evicted or rejected because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private boolean hasElements() {
+        return head.get() < tail.get();
+    }
+
+    private boolean hasRoom() {
+        return tail.get() - head.get() < capacity;
+    }
+
+    private int index(final long sequence) {
+        return (int) (sequence % capacity);
+    }
+}
@@ -0,0 +1,18 @@
+package net.pisarenko.pcv.common.queue;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a thread waits for a {@link RingBuffer} to become non-empty (or non-full).
+ */
+public interface WaitStrategy {
+    /**
+     * Waits until the condition holds or the timeout passes. Returns the last value of the condition.
+     */
+    boolean await(BooleanSupplier condition, long timeoutNanos) throws InterruptedException;
+
+    /**
+     * Called after the state watched by waiting threads has changed.
+     */
+    void signalAll();
+}
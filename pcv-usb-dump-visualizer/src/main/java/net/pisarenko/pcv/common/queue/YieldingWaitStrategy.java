@@ -0,0 +1,35 @@
+package net.pisarenko.pcv.common.queue;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Spins for a while, then yields the CPU between checks. Lowest latency, but keeps a core busy while waiting.
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public boolean await(final BooleanSupplier condition, final long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        int spins = 0;
+        while (!condition.getAsBoolean()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            if (spins < SPIN_TRIES) {
+                spins++;
+            } else {
+                Thread.yield();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void signalAll() {
+        // nothing to do, waiters spin
+    }
+}
@@ -0,0 +1,31 @@
+package net.pisarenko.pcv.common.recording;
+
+import net.pisarenko.pcv.common.Packet;
+
+/**
+ * Layout of session recordings. Everything is little endian, like the packets themselves.
+ *
+ * <pre>
+ * log (.pcvrec):  header, then one fixed size record per received packet
+ *   header        'P' 'C' 'V' 'R', u16 version, u16 record size, i64 creation time (epoch nanos)
+ *   record        i64 receive time (epoch nanos), 64 byte packet
+ * index (.idx):   one entry for every {@link #INDEX_INTERVAL}th record
+ *   entry         i64 receive time (epoch nanos), i64 record number
+ * </pre>
+ *
+ * A record that was cut short by a crash is ignored. The index only speeds up seeking; a recording without it can
+ * still be replayed.
+ */
+public final class RecordingFormat {
+    public static final String EXTENSION = ".pcvrec";
+    public static final String INDEX_EXTENSION = ".idx";
+
+    static final byte[] MAGIC = {'P', 'C', 'V', 'R'};
+    static final short VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = Long.BYTES + Packet.SIZE;
+    static final int INDEX_ENTRY_BYTES = 2 * Long.BYTES;
+    static final int INDEX_INTERVAL = 1024;
+
+    private RecordingFormat() {}
+}
@@ -0,0 +1,197 @@
+package net.pisarenko.pcv.common.recording;
+
+import net.pisarenko.pcv.common.PacketView;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static net.pisarenko.pcv.common.recording.RecordingFormat.HEADER_BYTES;
+import static net.pisarenko.pcv.common.recording.RecordingFormat.INDEX_ENTRY_BYTES;
+import static net.pisarenko.pcv.common.recording.RecordingFormat.INDEX_INTERVAL;
+import static net.pisarenko.pcv.common.recording.RecordingFormat.RECORD_BYTES;
+
+/**
+ * Appends received packets to a session recording (see {@link RecordingFormat}) for later replay.
+ *
+ * Records are collected in a buffer and written {@link #BUFFERED_RECORDS} at a time, so recording costs a memory copy
+ * per packet and a write every few seconds. {@link #flushIfDue()} writes and forces to disk what is buffered at least
+ * every {@link #FLUSH_INTERVAL_MILLIS}, so that a power cut loses no more than that.
+ */
+public class SessionRecorder implements Closeable {
+    private static final int BUFFERED_RECORDS = 64;
+    public static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final FileChannel log;
+    private final FileChannel index;
+    private final ByteBuffer buffer =
+            ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private long records;
+    /** Bytes in the log file and the buffer. */
+    private long bytes = HEADER_BYTES;
+    private long maxBytes = Long.MAX_VALUE;
+    private long lastFlushNanos = System.nanoTime();
+
+    private SessionRecorder(final FileChannel log, final FileChannel index) {
+        this.log = log;
+        this.index = index;
+    }
+
+    /**
+     * Makes {@link #record} fail once the recording would grow beyond this size.
+     */
+    public synchronized void setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a new recording. The index goes next to it, with {@link RecordingFormat#INDEX_EXTENSION} appended.
+     */
+    public static SessionRecorder create(final Path file) throws IOException {
+        final FileChannel log = FileChannel.open(
+                file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        final FileChannel index;
+        try {
+            index = FileChannel.open(indexPath(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            log.close();
+            throw e;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(RecordingFormat.MAGIC)
+                .putShort(RecordingFormat.VERSION)
+                .putShort((short) RECORD_BYTES)
+                .putLong(toEpochNanos(Instant.now(Clock.systemUTC())));
+        header.flip();
+        while (header.hasRemaining()) {
+            log.write(header);
+        }
+        return new SessionRecorder(log, index);
+    }
+
+    public static long toEpochNanos(final Instant instant) {
+        return instant.getEpochSecond() * 1000000000L + instant.getNano();
+    }
+
+    static Path indexPath(final Path file) {
+        return Paths.get(file.toString() + RecordingFormat.INDEX_EXTENSION);
+    }
+
+    /**
+     * Deletes the oldest recordings in the directory, with their indexes, until all of them take at most the given
+     * space.
+     */
+    public static void deleteOldest(final Path directory, final long maxBytes) throws IOException {
+        final List<Path> recordings = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + RecordingFormat.EXTENSION)) {
+            files.forEach(recordings::add);
+        }
+        recordings.sort(Comparator.comparingLong(SessionRecorder::lastModified));
+
+        long total = 0;
+        for (Path recording : recordings) {
+            total += size(recording) + size(indexPath(recording));
+        }
+        for (int i = 0; i < recordings.size() && total > maxBytes; i++) {
+            final Path recording = recordings.get(i);
+            total -= size(recording) + size(indexPath(recording));
+            Files.deleteIfExists(indexPath(recording));
+            Files.deleteIfExists(recording);
+        }
+    }
+
+    private static long size(final Path file) throws IOException {
+        return Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    private static long lastModified(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public synchronized void record(final PacketView packet, final long epochNanos) throws IOException {
+        if (bytes + RECORD_BYTES > maxBytes) {
+            throw new IOException("Recording reached its limit of " + maxBytes + " bytes");
+        }
+        if (records % INDEX_INTERVAL == 0) {
+            writeIndexEntry(epochNanos);
+        }
+        buffer.putLong(epochNanos);
+        packet.copyTo(buffer);
+        records++;
+        bytes += RECORD_BYTES;
+        if (!buffer.hasRemaining()) {
+            writeBuffer();
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Writes buffered records to the file and forces the recording to disk.
+     */
+    public synchronized void flush() throws IOException {
+        writeBuffer();
+        log.force(false);
+        index.force(false);
+        lastFlushNanos = System.nanoTime();
+    }
+
+    /**
+     * Flushes if the last flush was {@link #FLUSH_INTERVAL_MILLIS} ago or longer. Meant to be called on a timer.
+     */
+    public synchronized void flushIfDue() throws IOException {
+        if (System.nanoTime() - lastFlushNanos >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS)
+                && log.isOpen()) {
+            flush();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            log.close();
+            index.close();
+        }
+    }
+
+    private void writeIndexEntry(final long epochNanos) throws IOException {
+        indexEntry.clear();
+        indexEntry.putLong(epochNanos).putLong(records);
+        indexEntry.flip();
+        while (indexEntry.hasRemaining()) {
+            index.write(indexEntry);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package net.pisarenko.pcv.common.recording;
+
+import com.google.common.collect.Lists;
+import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketView;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.pisarenko.pcv.common.recording.RecordingFormat.HEADER_BYTES;
+import static net.pisarenko.pcv.common.recording.RecordingFormat.INDEX_ENTRY_BYTES;
+import static net.pisarenko.pcv.common.recording.RecordingFormat.RECORD_BYTES;
+
+/**
+ * Plays back a session recording (see {@link RecordingFormat}), either paced like the original session, N times as
+ * fast, or as fast as possible.
+ *
+ * The log is memory-mapped and records are handed out as {@link PacketView}s over the mapping, so replaying at full
+ * speed runs at memory bandwidth. Not thread safe.
+ */
+public class SessionReplayer implements Closeable {
+    /** Replay speed that does not wait at all. */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    /** Records per mapped region; keeps every region well below the 2 GB limit of a mapping. */
+    private static final int RECORDS_PER_MAPPING = 1 << 20;
+
+    private final FileChannel log;
+    private final long recordCount;
+    private final MappedByteBuffer[] mappings;
+    /** Index entries: receive time and record number, sorted by record number. */
+    private final long[] indexTimes;
+    private final long[] indexRecords;
+
+    private final PacketView view = new PacketView();
+    private long position;
+
+    public interface RecordListener {
+        /**
+         * Called for every replayed record. The view is only valid during the call.
+         */
+        void onRecord(PacketView packet, long epochNanos);
+    }
+
+    private SessionReplayer(final FileChannel log, final long recordCount, final MappedByteBuffer[] mappings,
+                            final long[] indexTimes, final long[] indexRecords) {
+        this.log = log;
+        this.recordCount = recordCount;
+        this.mappings = mappings;
+        this.indexTimes = indexTimes;
+        this.indexRecords = indexRecords;
+    }
+
+    public static SessionReplayer open(final Path file) throws IOException {
+        final FileChannel log = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && log.read(header) >= 0) {
+                // keep reading
+            }
+            header.flip();
+            final byte[] magic = new byte[RecordingFormat.MAGIC.length];
+            if (header.remaining() < HEADER_BYTES) {
+                throw new IOException("Not a session recording: " + file);
+            }
+            header.get(magic);
+            final short version = header.getShort();
+            final short recordBytes = header.getShort();
+            if (!Arrays.equals(magic, RecordingFormat.MAGIC) || version != RecordingFormat.VERSION
+                    || recordBytes != RECORD_BYTES) {
+                throw new IOException("Not a session recording of version " + RecordingFormat.VERSION + ": " + file);
+            }
+
+            final long recordCount = (log.size() - HEADER_BYTES) / RECORD_BYTES;
+            final MappedByteBuffer[] mappings =
+                    new MappedByteBuffer[(int) ((recordCount + RECORDS_PER_MAPPING - 1) / RECORDS_PER_MAPPING)];
+            for (int i = 0; i < mappings.length; i++) {
+                final long first = (long) i * RECORDS_PER_MAPPING;
+                final long records = Math.min(RECORDS_PER_MAPPING, recordCount - first);
+                mappings[i] = log.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * RECORD_BYTES,
+                        records * RECORD_BYTES);
+                mappings[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            final Path indexFile = SessionRecorder.indexPath(file);
+            final ByteBuffer index = Files.exists(indexFile)
+                    ? ByteBuffer.wrap(Files.readAllBytes(indexFile)).order(ByteOrder.LITTLE_ENDIAN)
+                    : ByteBuffer.allocate(0);
+            final int entries = index.remaining() / INDEX_ENTRY_BYTES;
+            final long[] indexTimes = new long[entries];
+            final long[] indexRecords = new long[entries];
+            int used = 0;
+            for (int i = 0; i < entries; i++) {
+                final long time = index.getLong();
+                final long record = index.getLong();
+                // entries for records that did not make it to the log are useless
+                if (record < recordCount) {
+                    indexTimes[used] = time;
+                    indexRecords[used] = record;
+                    used++;
+                }
+            }
+
+            return new SessionReplayer(log, recordCount,
+                    mappings, Arrays.copyOf(indexTimes, used), Arrays.copyOf(indexRecords, used));
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a whole recording into packets, e.g. for the analysis routines.
+     */
+    public static List<Packet> readAll(final Path file) throws IOException {
+        try (SessionReplayer replayer = open(file)) {
+            final List<Packet> packets = Lists.newArrayListWithCapacity((int) replayer.getRecordCount());
+            while (replayer.hasNext()) {
+                final long epochNanos = replayer.nextTimestamp();
+                packets.add(Packet.createFromReceivedView(replayer.next(), toLocalDateTime(epochNanos)));
+            }
+            return packets;
+        }
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Positions the replay at the first record received at or after the given time, or at the end.
+     */
+    public void seek(final long epochNanos) {
+        // last index entry not after the target; the records between two entries are scanned
+        int low = 0;
+        int high = indexTimes.length - 1;
+        long start = 0;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (indexTimes[middle] <= epochNanos) {
+                start = indexRecords[middle];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        position = start;
+        while (position < recordCount && timestampAt(position) < epochNanos) {
+            position++;
+        }
+    }
+
+    public boolean hasNext() {
+        return position < recordCount;
+    }
+
+    /**
+     * Receive time of the record {@link #next()} will return.
+     */
+    public long nextTimestamp() {
+        return timestampAt(position);
+    }
+
+    /**
+     * Returns a view of the next packet, valid until the next call.
+     */
+    public PacketView next() {
+        final MappedByteBuffer mapping = mappings[(int) (position / RECORDS_PER_MAPPING)];
+        final int base = (int) (position % RECORDS_PER_MAPPING) * RECORD_BYTES;
+        position++;
+        return view.wrap(mapping, base + Long.BYTES);
+    }
+
+    /**
+     * Replays the rest of the recording. With speed 1 records are handed out with the same gaps between them as when
+     * they were received, with speed N N times as fast, with {@link #MAX_SPEED} without waiting. Pacing is anchored to
+     * the first replayed record, so it does not drift.
+     */
+    public void replay(final double speed, final RecordListener listener) throws InterruptedException {
+        if (!hasNext()) {
+            return;
+        }
+        final boolean paced = speed > 0 && !Double.isInfinite(speed);
+        final long firstRecordNanos = nextTimestamp();
+        final long startNanos = System.nanoTime();
+
+        while (hasNext()) {
+            final long epochNanos = nextTimestamp();
+            if (paced) {
+                final long due = startNanos + (long) ((epochNanos - firstRecordNanos) / speed);
+                long remaining;
+                while ((remaining = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            }
+            listener.onRecord(next(), epochNanos);
+        }
+    }
+
+    /**
+     * Replays the rest of the recording into a queue, e.g. the one {@code PacketReceiver} would fill. Packets keep
+     * their original receive times.
+     */
+    public void replayInto(final Queue<Packet> queue, final double speed) throws InterruptedException {
+        replay(speed, (packet, epochNanos) ->
+                queue.offer(Packet.createFromReceivedView(packet, toLocalDateTime(epochNanos))));
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private long timestampAt(final long record) {
+        final MappedByteBuffer mapping = mappings[(int) (record / RECORDS_PER_MAPPING)];
+        return mapping.getLong((int) (record % RECORDS_PER_MAPPING) * RECORD_BYTES);
+    }
+
+    private static LocalDateTime toLocalDateTime(final long epochNanos) {
+        return LocalDateTime.ofEpochSecond(
+                Math.floorDiv(epochNanos, 1000000000L), (int) Math.floorMod(epochNanos, 1000000000L), ZoneOffset.UTC);
+    }
+}
@@ -5,9 +5,12 @@ import com.google.common.collect.Lists;
 import net.pisarenko.pcv.common.Command;
 import net.pisarenko.pcv.common.Packet;
 import net.pisarenko.pcv.common.PacketUtil;
+import net.pisarenko.pcv.common.recording.RecordingFormat;
+import net.pisarenko.pcv.common.recording.SessionReplayer;
 import net.pisarenko.pcv.values.RPM;
 import net.pisarenko.pcv.values.Throttle;
 
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
@@ -23,7 +26,9 @@ import java.util.stream.Collectors;
 public class PCVUSBPacketAnalysisRoutines {
     public static void main(String[] args) throws Exception {
         final String usbDumpPath = args[0];
-        final List<Packet> packets = PacketUtil.parseUSBPackets(usbDumpPath);
+        final List<Packet> packets = usbDumpPath.endsWith(RecordingFormat.EXTENSION)
+                ? SessionReplayer.readAll(Paths.get(usbDumpPath))
+                : PacketUtil.parseUSBPacketsParallel(usbDumpPath);
         final String routine = args[1];
 
         switch (routine) {
@@ -0,0 +1,54 @@
+package net.pisarenko.pcv.values;
+
+/**
+ * A value in the GET_CHANNEL_STATUS payload: an unsigned little endian integer of {@code width} bytes starting at
+ * {@code offset}, multiplied by {@code scale} to get the value in its unit.
+ */
+public class Channel {
+    private final String name;
+    private final int offset;
+    private final int width;
+    private final double scale;
+
+    public Channel(final String name, final int offset, final int width, final double scale) {
+        if (width != 1 && width != 2 && width != 4) {
+            throw new IllegalArgumentException("Unsupported width " + width + " for channel " + name);
+        }
+        this.name = name;
+        this.offset = offset;
+        this.width = width;
+        this.scale = scale;
+    }
+
+    public Channel(final String name, final int offset, final int width) {
+        this(name, offset, width, 1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Whether the raw value is the value, so it can be published as an integer.
+     */
+    public boolean isUnscaled() {
+        return scale == 1;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + offset + ".." + (offset + width - 1) + "]";
+    }
+}
@@ -0,0 +1,67 @@
+package net.pisarenko.pcv.values;
+
+import net.pisarenko.pcv.common.PacketView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes a set of channels from a GET_CHANNEL_STATUS packet in one pass.
+ *
+ * The channel table is flattened into arrays of offsets and widths up front, so decoding is a loop of absolute reads
+ * from the packet buffer into a {@link ChannelSnapshot}, without copying the payload or allocating anything.
+ */
+public class ChannelDecoder {
+    private final List<Channel> channels;
+    private final int[] offsets;
+    private final int[] widths;
+    private final double[] scales;
+
+    public ChannelDecoder(final List<Channel> channels) {
+        this.channels = new ArrayList<>(channels);
+        this.offsets = new int[channels.size()];
+        this.widths = new int[channels.size()];
+        this.scales = new double[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            offsets[i] = channels.get(i).getOffset();
+            widths[i] = channels.get(i).getWidth();
+            scales[i] = channels.get(i).getScale();
+        }
+    }
+
+    /**
+     * Creates a snapshot sized for this decoder's channels, to be reused for every packet.
+     */
+    public ChannelSnapshot newSnapshot() {
+        return new ChannelSnapshot(this);
+    }
+
+    public void decode(final PacketView packet, final ChannelSnapshot snapshot) {
+        final long[] raw = snapshot.raw;
+        for (int i = 0; i < offsets.length; i++) {
+            switch (widths[i]) {
+                case 1:
+                    raw[i] = packet.getPayloadUnsignedByte(offsets[i]);
+                    break;
+                case 2:
+                    raw[i] = packet.getPayloadUnsignedShort(offsets[i]);
+                    break;
+                default:
+                    raw[i] = packet.getPayloadUnsignedInt(offsets[i]);
+                    break;
+            }
+        }
+    }
+
+    public int getChannelCount() {
+        return offsets.length;
+    }
+
+    public Channel getChannel(final int index) {
+        return channels.get(index);
+    }
+
+    double getScale(final int index) {
+        return scales[index];
+    }
+}
@@ -0,0 +1,44 @@
+package net.pisarenko.pcv.values;
+
+/**
+ * Values of all channels of a {@link ChannelDecoder} decoded from one packet. Indexes follow the decoder's channel
+ * list. Overwritten by every {@link ChannelDecoder#decode} into it.
+ */
+public class ChannelSnapshot {
+    private final ChannelDecoder decoder;
+    final long[] raw;
+
+    ChannelSnapshot(final ChannelDecoder decoder) {
+        this.decoder = decoder;
+        this.raw = new long[decoder.getChannelCount()];
+    }
+
+    public int size() {
+        return raw.length;
+    }
+
+    public Channel getChannel(final int index) {
+        return decoder.getChannel(index);
+    }
+
+    /**
+     * The value as stored in the packet.
+     */
+    public long getRaw(final int index) {
+        return raw[index];
+    }
+
+    /**
+     * The value in the channel's unit, i.e. scaled.
+     */
+    public double getValue(final int index) {
+        return raw[index] * decoder.getScale(index);
+    }
+
+    /**
+     * The value as it should be published: an integer for unscaled channels.
+     */
+    public String format(final int index) {
+        return decoder.getChannel(index).isUnscaled() ? Long.toString(raw[index]) : Double.toString(getValue(index));
+    }
+}
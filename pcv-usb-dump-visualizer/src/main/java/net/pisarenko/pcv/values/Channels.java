@@ -0,0 +1,19 @@
+package net.pisarenko.pcv.values;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The channels known in the 29 byte GET_CHANNEL_STATUS payload. See {@link RPM} and {@link Throttle} for how they were
+ * found. Other channels (gear, speed...) are in there as well but their positions have not been worked out yet; once
+ * they are, adding them here is all it takes to decode and publish them.
+ */
+public class Channels {
+    public static final Channel RPM = new Channel("RPM", 1, 2);
+    public static final Channel THROTTLE = new Channel("Throttle", 9, 2);
+
+    public static final List<Channel> CHANNEL_STATUS = Collections.unmodifiableList(Arrays.asList(RPM, THROTTLE));
+
+    private Channels() {}
+}
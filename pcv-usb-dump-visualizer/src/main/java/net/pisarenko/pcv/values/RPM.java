@@ -1,6 +1,7 @@
 package net.pisarenko.pcv.values;
 
 import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketView;
 
 /**
  * RPM value is stored in 2 bytes starting from byte 1.
@@ -16,4 +17,8 @@ public class RPM {
     public static int fromPacket(final Packet packet) {
         return (int) packet.getPayloadFragment(1, 2);
     }
+
+    public static int fromView(final PacketView packet) {
+        return packet.getPayloadUnsignedShort(1);
+    }
 }
@@ -1,6 +1,7 @@
 package net.pisarenko.pcv.values;
 
 import net.pisarenko.pcv.common.Packet;
+import net.pisarenko.pcv.common.PacketView;
 
 /**
  * Throttle value is stored in 2 bytes starting from byte 9. Value ranges from 1 to 1000.
@@ -16,4 +17,8 @@ public class Throttle {
     public static int fromPacket(final Packet packet) {
         return (int) packet.getPayloadFragment(9, 2);
     }
+
+    public static int fromView(final PacketView packet) {
+        return packet.getPayloadUnsignedShort(9);
+    }
 }